@@ -0,0 +1,385 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable, compact index of the entries in an archive.
+ *
+ * Instead of a String and a ZipEntry per entry, names are stored
+ * back-to-back as UTF-8 in a single byte array and everything else is
+ * in parallel primitive arrays. An open-addressing table of entry
+ * numbers (keyed by the String#hashCode of the name) allows lookups by
+ * String without allocating.
+ *
+ * Entries are numbered in central directory order. If an archive
+ * contains duplicate names, the last one wins.
+ *
+ * Sizes are ints, except for the rare entries that are too large for
+ * an array (see isOversized), whose sizes are kept in a side table.
+ */
+final class ArchiveIndex {
+
+    private final byte[] names;
+    // entry i's name is names[nameOffsets[i] until nameOffsets[i + 1]]
+    private final int[] nameOffsets;
+    private final int[] hashes;
+    private final long[] headerOffsets;
+    // if either size is too large for an int, both are -1 - k, where
+    // `oversized[2k]' and `oversized[2k + 1]' are the sizes
+    private final int[] compressedSizes;
+    private final int[] sizes;
+    private final long[] oversized;
+    private final int[] crcs;
+    private final byte[] methods;
+    // entry number + 1, zero is empty
+    private final int[] table;
+    private final int mask;
+    private final int size;
+
+    private ArchiveIndex(Builder builder) {
+        this.size = builder.size;
+        this.names = Arrays.copyOf(builder.names, builder.nameOffsets[size]);
+        this.nameOffsets = Arrays.copyOf(builder.nameOffsets, size + 1);
+        this.hashes = Arrays.copyOf(builder.hashes, size);
+        this.headerOffsets = Arrays.copyOf(builder.headerOffsets, size);
+        this.compressedSizes = Arrays.copyOf(builder.compressedSizes, size);
+        this.sizes = Arrays.copyOf(builder.sizes, size);
+        this.oversized = Arrays.copyOf(builder.oversized, builder.oversizedLength);
+        this.crcs = Arrays.copyOf(builder.crcs, size);
+        this.methods = Arrays.copyOf(builder.methods, size);
+
+        // load factor of at most 0.5
+        int capacity = Math.max(2, Integer.highestOneBit(Math.max(1, size)) << 2);
+        this.table = new int[capacity];
+        this.mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = hashes[i] & mask;
+            while (true) {
+                int existing = table[slot] - 1;
+                if (existing < 0 || (hashes[existing] == hashes[i] && sameName(existing, i))) {
+                    table[slot] = i + 1;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+    }
+
+    private ArchiveIndex(int size, byte[] names, int[] nameOffsets, int[] hashes, long[] headerOffsets,
+                         int[] compressedSizes, int[] sizes, long[] oversized, int[] crcs, byte[] methods, int[] table) {
+        this.size = size;
+        this.names = names;
+        this.nameOffsets = nameOffsets;
+        this.hashes = hashes;
+        this.headerOffsets = headerOffsets;
+        this.compressedSizes = compressedSizes;
+        this.sizes = sizes;
+        this.oversized = oversized;
+        this.crcs = crcs;
+        this.methods = methods;
+        this.table = table;
+        this.mask = table.length - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the entry number of `name' (ignoring leading slashes), or -1.
+     */
+    int indexOf(String name) {
+        int start = 0;
+        while (start < name.length() && name.charAt(start) == '/') start++;
+        int hash = BloomFilter.hash(name);
+        int slot = hash & mask;
+        while (true) {
+            int i = table[slot] - 1;
+            if (i < 0) return -1;
+            if (hashes[i] == hash && matches(i, name, start)) return i;
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    String name(int i) {
+        return new String(names, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i], StandardCharsets.UTF_8);
+    }
+
+    int nameLength(int i) {
+        return nameOffsets[i + 1] - nameOffsets[i];
+    }
+
+    int hash(int i) {
+        return hashes[i];
+    }
+
+    long headerOffset(int i) {
+        return headerOffsets[i];
+    }
+
+    int method(int i) {
+        return methods[i] & 0xFF;
+    }
+
+    long compressedSize(int i) {
+        int compressedSize = compressedSizes[i];
+        return compressedSize >= 0 ? compressedSize : oversized[2 * (-1 - compressedSize)];
+    }
+
+    long size(int i) {
+        int size = sizes[i];
+        return size >= 0 ? size : oversized[2 * (-1 - size) + 1];
+    }
+
+    /**
+     * True if either size of entry `i' is more than an int, in which
+     * case it can only be streamed, see StreamingResource#streamed.
+     */
+    boolean isOversized(int i) {
+        return sizes[i] < 0;
+    }
+
+    int crc(int i) {
+        return crcs[i];
+    }
+
+    /** The distinct packages, as defined by URLClassPath#packageOf. */
+    Set<String> packages() {
+        Set<String> packages = new HashSet<>();
+        int lastFrom = -1, lastLength = -1;
+        for (int i = 0; i < size; i++) {
+            int from = nameOffsets[i];
+            int to = nameOffsets[i + 1];
+            if (from < to && names[from] == '/') {
+                packages.add(URLClassPath.packageOf(name(i)));
+                continue;
+            }
+            int slash = to - 1;
+            while (slash >= from && names[slash] != '/') slash--;
+            int length = slash < from ? 0 : slash - from;
+            // archives are usually grouped by package, avoid creating duplicate Strings
+            if (lastFrom >= 0 && length == lastLength && regionEquals(names, lastFrom, from, length)) continue;
+            packages.add(new String(names, from, length, StandardCharsets.UTF_8));
+            lastFrom = from;
+            lastLength = length;
+        }
+        return Collections.unmodifiableSet(packages);
+    }
+
+    /** Approximate number of bytes retained by this index. */
+    long footprint() {
+        return names.length + methods.length
+            + 4L * (nameOffsets.length + hashes.length + compressedSizes.length + sizes.length + crcs.length + table.length)
+            + 8L * (headerOffsets.length + oversized.length);
+    }
+
+    /** The number of bytes needed by writeTo. */
+    int serializedSize() {
+        return 16 + names.length + methods.length
+            + 4 * (nameOffsets.length + hashes.length + compressedSizes.length + sizes.length + crcs.length + table.length)
+            + 8 * (headerOffsets.length + oversized.length);
+    }
+
+    /** Write everything, including the table, so that reading is just copying. */
+    void writeTo(ByteBuffer out) {
+        out.putInt(size);
+        out.putInt(names.length);
+        out.putInt(table.length);
+        out.putInt(oversized.length);
+        out.put(names);
+        put(out, nameOffsets);
+        put(out, hashes);
+        out.asLongBuffer().put(headerOffsets);
+        out.position(out.position() + 8 * headerOffsets.length);
+        put(out, compressedSizes);
+        put(out, sizes);
+        put(out, crcs);
+        out.put(methods);
+        put(out, table);
+        out.asLongBuffer().put(oversized);
+        out.position(out.position() + 8 * oversized.length);
+    }
+
+    /**
+     * The inverse of writeTo, the buffer must have the same byte order.
+     *
+     * @throws IOException if the buffer is obviously not an index.
+     */
+    static ArchiveIndex readFrom(ByteBuffer in) throws IOException {
+        int size = in.getInt();
+        int namesLength = in.getInt();
+        int tableLength = in.getInt();
+        int oversizedLength = in.getInt();
+        if (size < 0 || namesLength < 0 || tableLength < 2 || Integer.bitCount(tableLength) != 1 || tableLength < 2L * size
+            || oversizedLength < 0 || oversizedLength % 2 != 0
+            || in.remaining() < namesLength + 29L * size + 4L * (tableLength + 1) + 8L * oversizedLength)
+            throw new IOException("bad index header");
+        byte[] names = new byte[namesLength];
+        in.get(names);
+        int[] nameOffsets = get(in, size + 1);
+        if (nameOffsets[size] != namesLength) throw new IOException("bad index names");
+        int[] hashes = get(in, size);
+        long[] headerOffsets = new long[size];
+        in.asLongBuffer().get(headerOffsets);
+        in.position(in.position() + 8 * size);
+        int[] compressedSizes = get(in, size);
+        int[] sizes = get(in, size);
+        int[] crcs = get(in, size);
+        byte[] methods = new byte[size];
+        in.get(methods);
+        int[] table = get(in, tableLength);
+        long[] oversized = new long[oversizedLength];
+        in.asLongBuffer().get(oversized);
+        in.position(in.position() + 8 * oversizedLength);
+        for (int i = 0; i < size; i++) {
+            if (sizes[i] < -oversizedLength / 2 || compressedSizes[i] != sizes[i] && (sizes[i] < 0 || compressedSizes[i] < 0))
+                throw new IOException("bad index sizes");
+        }
+        return new ArchiveIndex(size, names, nameOffsets, hashes, headerOffsets, compressedSizes, sizes, oversized, crcs, methods, table);
+    }
+
+    private static void put(ByteBuffer out, int[] ints) {
+        out.asIntBuffer().put(ints);
+        out.position(out.position() + 4 * ints.length);
+    }
+
+    private static int[] get(ByteBuffer in, int length) {
+        int[] ints = new int[length];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + 4 * length);
+        return ints;
+    }
+
+    private boolean sameName(int a, int b) {
+        int length = nameOffsets[a + 1] - nameOffsets[a];
+        return length == nameOffsets[b + 1] - nameOffsets[b]
+            && regionEquals(names, nameOffsets[a], nameOffsets[b], length);
+    }
+
+    private static boolean regionEquals(byte[] bytes, int a, int b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[a + i] != bytes[b + i]) return false;
+        }
+        return true;
+    }
+
+    // compares the UTF-8 encoding of name.substring(start), encoding on the fly
+    private boolean matches(int i, String name, int start) {
+        int pos = nameOffsets[i];
+        int end = nameOffsets[i + 1];
+        int length = name.length();
+        for (int c = start; c < length; c++) {
+            char ch = name.charAt(c);
+            if (ch < 0x80) {
+                if (pos >= end || names[pos++] != ch) return false;
+            } else if (ch < 0x800) {
+                if (pos + 2 > end
+                    || names[pos++] != (byte) (0xC0 | (ch >> 6))
+                    || names[pos++] != (byte) (0x80 | (ch & 0x3F))) return false;
+            } else if (Character.isHighSurrogate(ch) && c + 1 < length && Character.isLowSurrogate(name.charAt(c + 1))) {
+                int cp = Character.toCodePoint(ch, name.charAt(++c));
+                if (pos + 4 > end
+                    || names[pos++] != (byte) (0xF0 | (cp >> 18))
+                    || names[pos++] != (byte) (0x80 | ((cp >> 12) & 0x3F))
+                    || names[pos++] != (byte) (0x80 | ((cp >> 6) & 0x3F))
+                    || names[pos++] != (byte) (0x80 | (cp & 0x3F))) return false;
+            } else if (Character.isSurrogate(ch)) {
+                // unpaired surrogates are encoded as '?', same as String#getBytes
+                if (pos >= end || names[pos++] != '?') return false;
+            } else {
+                if (pos + 3 > end
+                    || names[pos++] != (byte) (0xE0 | (ch >> 12))
+                    || names[pos++] != (byte) (0x80 | ((ch >> 6) & 0x3F))
+                    || names[pos++] != (byte) (0x80 | (ch & 0x3F))) return false;
+            }
+        }
+        return pos == end;
+    }
+
+    /** Accumulates the central directory, see CentralDirectory#read. */
+    static final class Builder implements CentralDirectory.Visitor {
+        private byte[] names = new byte[4096];
+        private int[] nameOffsets = new int[65];
+        private int[] hashes = new int[64];
+        private long[] headerOffsets = new long[64];
+        private int[] compressedSizes = new int[64];
+        private int[] sizes = new int[64];
+        private long[] oversized = new long[0];
+        private int oversizedLength;
+        private int[] crcs = new int[64];
+        private byte[] methods = new byte[64];
+        private int size;
+
+        @Override
+        public void visit(byte[] buf, int nameOffset, int nameLength,
+                          long headerOffset, int method,
+                          long compressedSize, long size, int crc) {
+            int hash = 0;
+            boolean ascii = true;
+            for (int i = nameOffset; i < nameOffset + nameLength; i++) {
+                byte b = buf[i];
+                if (b < 0) {
+                    ascii = false;
+                    break;
+                }
+                hash = 31 * hash + b;
+            }
+            if (!ascii) {
+                // normalise to what String would produce, e.g. for malformed input
+                String name = new String(buf, nameOffset, nameLength, StandardCharsets.UTF_8);
+                byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+                add(encoded, 0, encoded.length, name.hashCode(), headerOffset, method, compressedSize, size, crc);
+            } else {
+                add(buf, nameOffset, nameLength, hash, headerOffset, method, compressedSize, size, crc);
+            }
+        }
+
+        private void add(byte[] buf, int nameOffset, int nameLength, int hash,
+                         long headerOffset, int method,
+                         long compressedSize, long size, int crc) {
+            int i = this.size;
+            if (i == hashes.length) {
+                int grown = i * 2;
+                nameOffsets = Arrays.copyOf(nameOffsets, grown + 1);
+                hashes = Arrays.copyOf(hashes, grown);
+                headerOffsets = Arrays.copyOf(headerOffsets, grown);
+                compressedSizes = Arrays.copyOf(compressedSizes, grown);
+                sizes = Arrays.copyOf(sizes, grown);
+                crcs = Arrays.copyOf(crcs, grown);
+                methods = Arrays.copyOf(methods, grown);
+            }
+            int from = nameOffsets[i];
+            if (from + nameLength > names.length)
+                names = Arrays.copyOf(names, Math.max(names.length * 2, from + nameLength));
+            System.arraycopy(buf, nameOffset, names, from, nameLength);
+            nameOffsets[i + 1] = from + nameLength;
+            hashes[i] = hash;
+            headerOffsets[i] = headerOffset;
+            if (compressedSize > Integer.MAX_VALUE || size > Integer.MAX_VALUE) {
+                if (oversizedLength == oversized.length)
+                    oversized = Arrays.copyOf(oversized, Math.max(2, 2 * oversized.length));
+                compressedSizes[i] = sizes[i] = -1 - oversizedLength / 2;
+                oversized[oversizedLength++] = compressedSize;
+                oversized[oversizedLength++] = size;
+            } else {
+                compressedSizes[i] = (int) compressedSize;
+                sizes[i] = (int) size;
+            }
+            crcs[i] = crc;
+            methods[i] = (byte) method;
+            this.size = i + 1;
+        }
+
+        ArchiveIndex build() {
+            return new ArchiveIndex(this);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+/**
+ * A fixed size Bloom filter over resource names, used to answer
+ * "definitely not here" without probing a ResourceProvider.
+ *
+ * Names are hashed with the same function as String#hashCode (but
+ * ignoring leading slashes) so that the common case reuses the hash
+ * cached in the String. The bit array is a power of two and indices
+ * are derived by double hashing.
+ *
+ * Not thread safe for writers. A reader that races a writer may not
+ * see the names that are being added, so instances that must never
+ * miss a name have to be fully populated before they are published.
+ */
+final class BloomFilter {
+    // ~1% false positive rate at capacity
+    private static final int BITS_PER_ENTRY = 10;
+    private static final int HASHES = 5;
+
+    private final long[] bits;
+    private final int mask;
+    private final int capacity;
+    private int count;
+
+    BloomFilter(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("`capacity' must not be negative");
+        long wanted = Math.max(64L, (long) capacity * BITS_PER_ENTRY);
+        int size = wanted >= (1 << 30) ? (1 << 30) : Integer.highestOneBit((int) wanted - 1) << 1;
+        this.bits = new long[size >>> 6];
+        this.mask = size - 1;
+        this.capacity = capacity;
+    }
+
+    private BloomFilter(BloomFilter original) {
+        this.bits = original.bits.clone();
+        this.mask = original.mask;
+        this.capacity = original.capacity;
+        this.count = original.count;
+    }
+
+    /** An unpublished copy, for adding to while readers use this one. */
+    BloomFilter copy() {
+        return new BloomFilter(this);
+    }
+
+    /**
+     * Equivalent to `name.replaceAll("^/+", "").hashCode()` without
+     * the allocation.
+     */
+    static int hash(String name) {
+        if (name.isEmpty() || name.charAt(0) != '/') return name.hashCode();
+        int start = 1;
+        while (start < name.length() && name.charAt(start) == '/') start++;
+        int h = 0;
+        for (int i = start; i < name.length(); i++) {
+            h = 31 * h + name.charAt(i);
+        }
+        return h;
+    }
+
+    void add(int hash) {
+        int h1 = mix(hash);
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        count++;
+    }
+
+    void add(String name) {
+        add(hash(name));
+    }
+
+    boolean mightContain(int hash) {
+        int h1 = mix(hash);
+        int h2 = mix(h1) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    boolean mightContain(String name) {
+        return mightContain(hash(name));
+    }
+
+    /** True if more names have been added than this filter was sized for. */
+    boolean isSaturated() {
+        return count > capacity;
+    }
+
+    int size() {
+        return count;
+    }
+
+    // murmur3 finaliser, String#hashCode is too weak to use directly
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilter(" + count + "/" + capacity + ", " + (mask + 1) + " bits)";
+    }
+}
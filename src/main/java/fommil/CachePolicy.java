@@ -0,0 +1,60 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+/**
+ * Decides how the ResourceCache holds each resource, by the kind of
+ * resource, its size and how often it has been asked for.
+ *
+ * Class files are usually read once, by defineClass, so they are only
+ * cached once they have been asked for `class-monkey.cache.class.reads`
+ * times (default 2, e.g. by a second classloader over the same
+ * archive) and a prefetched class is dropped when it is first read.
+ *
+ * Configuration (e.g. `.properties`, `.xml` and `META-INF/services`)
+ * tends to be read repeatedly, by every library that wants it, so is
+ * held inflated if it is no larger than
+ * `class-monkey.cache.inflated.max` (default 64k).
+ *
+ * Everything else is held encoded by the configured ResourceCodec.
+ */
+final class CachePolicy {
+    private static final int CLASS_READS = ClassMonkeyOptions.getInt("cache.class.reads", 2);
+    private static final long INFLATED_MAX = ClassMonkeyOptions.getBytes("cache.inflated.max", 64L << 10);
+
+    private static final String[] CONFIG_SUFFIXES = {
+        ".properties", ".xml", ".conf", ".json", ".yaml", ".yml", ".MF"
+    };
+
+    private CachePolicy() { }
+
+    /** For reporting, see ResourceCache#getWeight. */
+    enum Category { CLASS, CONFIG, OTHER }
+
+    enum Decision { NEVER, COMPRESSED, INFLATED }
+
+    static Category categorize(String name) {
+        if (name.endsWith(".class")) return Category.CLASS;
+        if (name.startsWith("META-INF/services/")) return Category.CONFIG;
+        for (String suffix : CONFIG_SUFFIXES) {
+            if (name.endsWith(suffix)) return Category.CONFIG;
+        }
+        return Category.OTHER;
+    }
+
+    /**
+     * @param size of the content.
+     * @param reads the (approximate) number of times it has been asked
+     * for, including this time.
+     */
+    static Decision decide(Category category, int size, int reads) {
+        switch (category) {
+        case CLASS:
+            return reads < CLASS_READS ? Decision.NEVER : Decision.COMPRESSED;
+        case CONFIG:
+            return size <= INFLATED_MAX ? Decision.INFLATED : Decision.COMPRESSED;
+        default:
+            return Decision.COMPRESSED;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+import java.util.zip.ZipException;
+
+/**
+ * Pure Java reader of the central directory of a zip archive, which
+ * is all that is needed to index a jar. This avoids the native
+ * ZipFile implementation, which creates a ZipEntry for every entry
+ * and holds onto a file handle for as long as it is open.
+ *
+ * The archive is read with a single FileChannel, which is closed
+ * before returning. Zip64 archives and archives with prefixed data
+ * (e.g. self-extracting executables) are supported, multi-disk
+ * archives and encryption are not.
+ *
+ * Entry data is read directly from the local file header, using the
+ * offsets that were recorded from the central directory.
+ *
+ * See https://pkware.cachefly.net/webdocs/casestudies/APPNOTE.TXT
+ */
+final class CentralDirectory {
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final int EOCD_SIG = 0x06054b50;
+    private static final int EOCD_LEN = 22;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+    private static final int ZIP64_LOCATOR_LEN = 20;
+    private static final int ZIP64_EOCD_SIG = 0x06064b50;
+    private static final int ZIP64_EOCD_LEN = 56;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int CEN_LEN = 46;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int LOC_SIG = 0x04034b50;
+    private static final int LOC_LEN = 30;
+    // the local extra field is usually empty, or a few bytes in jars
+    private static final int LOC_EXTRA_GUESS = 32;
+    private static final long MAGIC32 = 0xFFFFFFFFL;
+    private static final int MAGIC16 = 0xFFFF;
+
+    private CentralDirectory() { }
+
+    /**
+     * Receives every entry of the central directory, in the order
+     * they appear. The name is UTF-8 encoded in `buf` at the given
+     * position and must not be retained beyond the callback.
+     */
+    interface Visitor {
+        void visit(byte[] buf, int nameOffset, int nameLength,
+                   long headerOffset, int method,
+                   long compressedSize, long size, int crc) throws IOException;
+    }
+
+    /** The (possibly compressed) data of an entry, as stored in the archive. */
+    static final class RawEntry {
+        final byte[] buf;
+        final int offset;
+        final int length;
+
+        RawEntry(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Read the data of an entry with (usually) a single positional
+     * read of its local header and data.
+     */
+    static RawEntry readRaw(FileChannel channel, long headerOffset, int nameLength, int compressedSize) throws IOException {
+        if (compressedSize < 0) throw new ZipException("entry at " + headerOffset + " is too large");
+
+        long available = channel.size() - headerOffset;
+        int guess = (int) Math.min(available, (long) LOC_LEN + nameLength + LOC_EXTRA_GUESS + compressedSize);
+        if (guess < LOC_LEN) throw new ZipException("bad local header offset " + headerOffset);
+        ByteBuffer buffer = readFully(channel, headerOffset, guess);
+        if (buffer.getInt(0) != LOC_SIG) throw new ZipException("bad local header at " + headerOffset);
+
+        int dataOffset = LOC_LEN + u16(buffer, 26) + u16(buffer, 28);
+        int end = dataOffset + compressedSize;
+        if (end <= guess) return new RawEntry(buffer.array(), dataOffset, compressedSize);
+
+        // the local extra field was bigger than we guessed
+        ByteBuffer data = readFully(channel, headerOffset + dataOffset, compressedSize);
+        return new RawEntry(data.array(), 0, compressedSize);
+    }
+
+    /** The position of the data of the entry whose local header is at `headerOffset'. */
+    static long dataOffset(FileChannel channel, long headerOffset) throws IOException {
+        if (channel.size() - headerOffset < LOC_LEN) throw new ZipException("bad local header offset " + headerOffset);
+        ByteBuffer header = readFully(channel, headerOffset, LOC_LEN);
+        if (header.getInt(0) != LOC_SIG) throw new ZipException("bad local header at " + headerOffset);
+        return headerOffset + LOC_LEN + u16(header, 26) + u16(header, 28);
+    }
+
+    /**
+     * @return the number of entries that were visited.
+     */
+    public static int read(File file, Visitor visitor) throws IOException {
+        if (file == null) throw new NullPointerException("`file' must not be null");
+        if (visitor == null) throw new NullPointerException("`visitor' must not be null");
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < EOCD_LEN) throw new ZipException(file + " is too small to be an archive");
+
+            // the EOCD is followed by a comment of up to 64k
+            int tailSize = (int) Math.min(fileSize, EOCD_LEN + MAGIC16);
+            long tailStart = fileSize - tailSize;
+            ByteBuffer tail = readFully(channel, tailStart, tailSize);
+
+            int eocd = findEocd(tail);
+            if (eocd < 0) throw new ZipException(file + " has no end of central directory record");
+
+            long entries = u16(tail, eocd + 10);
+            long cdSize = u32(tail, eocd + 12);
+            long cdOffset = u32(tail, eocd + 16);
+            long cdEnd = tailStart + eocd;
+
+            if (entries == MAGIC16 || cdSize == MAGIC32 || cdOffset == MAGIC32) {
+                long locatorPos = cdEnd - ZIP64_LOCATOR_LEN;
+                ByteBuffer locator = locatorPos < 0 ? null : readFully(channel, locatorPos, ZIP64_LOCATOR_LEN);
+                if (locator != null && locator.getInt(0) == ZIP64_LOCATOR_SIG) {
+                    long zip64Pos = locator.getLong(8);
+                    // the recorded position doesn't account for prefixed data
+                    long actualPos = locatorPos - ZIP64_EOCD_LEN;
+                    if (actualPos < 0) throw new ZipException(file + " has a bad zip64 locator");
+                    ByteBuffer zip64 = readFully(channel, actualPos, ZIP64_EOCD_LEN);
+                    if (zip64.getInt(0) != ZIP64_EOCD_SIG) {
+                        actualPos = zip64Pos;
+                        zip64 = readFully(channel, actualPos, ZIP64_EOCD_LEN);
+                        if (zip64.getInt(0) != ZIP64_EOCD_SIG)
+                            throw new ZipException(file + " has a bad zip64 end of central directory record");
+                    }
+                    entries = zip64.getLong(32);
+                    cdSize = zip64.getLong(40);
+                    cdOffset = zip64.getLong(48);
+                    cdEnd = actualPos;
+                }
+            }
+
+            // non-zero if the archive has been prefixed with other data
+            long base = cdEnd - cdSize - cdOffset;
+            if (base < 0 || cdSize > Integer.MAX_VALUE)
+                throw new ZipException(file + " has a bad central directory");
+
+            ByteBuffer cd = readFully(channel, base + cdOffset, (int) cdSize);
+            byte[] buf = cd.array();
+
+            int count = 0;
+            int pos = 0;
+            while (pos + CEN_LEN <= buf.length && cd.getInt(pos) == CEN_SIG) {
+                int method = u16(cd, pos + 10);
+                int crc = cd.getInt(pos + 16);
+                long compressedSize = u32(cd, pos + 20);
+                long size = u32(cd, pos + 24);
+                int nameLength = u16(cd, pos + 28);
+                int extraLength = u16(cd, pos + 30);
+                int commentLength = u16(cd, pos + 32);
+                long headerOffset = u32(cd, pos + 42);
+
+                int name = pos + CEN_LEN;
+                int extra = name + nameLength;
+                int next = extra + extraLength + commentLength;
+                if (next > buf.length) throw new ZipException(file + " has a truncated central directory");
+
+                if (size == MAGIC32 || compressedSize == MAGIC32 || headerOffset == MAGIC32) {
+                    int i = extra;
+                    while (i + 4 <= extra + extraLength) {
+                        int id = u16(cd, i);
+                        int len = u16(cd, i + 2);
+                        if (id == ZIP64_EXTRA) {
+                            int field = i + 4;
+                            int end = field + len;
+                            if (size == MAGIC32 && field + 8 <= end) {
+                                size = cd.getLong(field);
+                                field += 8;
+                            }
+                            if (compressedSize == MAGIC32 && field + 8 <= end) {
+                                compressedSize = cd.getLong(field);
+                                field += 8;
+                            }
+                            if (headerOffset == MAGIC32 && field + 8 <= end) {
+                                headerOffset = cd.getLong(field);
+                            }
+                            break;
+                        }
+                        i += 4 + len;
+                    }
+                }
+
+                visitor.visit(buf, name, nameLength, base + headerOffset, method, compressedSize, size, crc);
+                count++;
+                pos = next;
+            }
+
+            // some writers truncate the count to 16 bits, so only fewer is an error
+            if (count < entries && entries != MAGIC16)
+                throw new ZipException(file + " expected " + entries + " entries but found " + count);
+
+            return count;
+        }
+    }
+
+    /**
+     * A cheap fingerprint of the archive's contents: a CRC32 of the end
+     * of central directory record (which locates the central directory)
+     * and the archive comment that follows it, combined with the size.
+     */
+    static long checksum(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            if (fileSize < EOCD_LEN) throw new ZipException(file + " is too small to be an archive");
+
+            // comments are rare, so try a small read first
+            int tailSize = (int) Math.min(fileSize, EOCD_LEN + 1024);
+            ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+            int eocd = findEocd(tail);
+            if (eocd < 0 && tailSize < fileSize) {
+                tailSize = (int) Math.min(fileSize, EOCD_LEN + MAGIC16);
+                tail = readFully(channel, fileSize - tailSize, tailSize);
+                eocd = findEocd(tail);
+            }
+            if (eocd < 0) throw new ZipException(file + " has no end of central directory record");
+
+            CRC32 crc = new CRC32();
+            crc.update(tail.array(), eocd, tailSize - eocd);
+            return (fileSize << 32) ^ crc.getValue();
+        }
+    }
+
+    // the position of the end of central directory record in `tail', or -1
+    private static int findEocd(ByteBuffer tail) {
+        int tailSize = tail.limit();
+        for (int i = tailSize - EOCD_LEN; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIG && i + EOCD_LEN + u16(tail, i + 20) <= tailSize)
+                return i;
+        }
+        return -1;
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new ZipException("unexpected end of archive");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static int u16(ByteBuffer buffer, int index) {
+        return buffer.getShort(index) & 0xFFFF;
+    }
+
+    private static long u32(ByteBuffer buffer, int index) {
+        return buffer.getInt(index) & MAGIC32;
+    }
+}
@@ -16,6 +16,8 @@ final class ClassMonkey implements ClassFileTransformer {
         if (System.getenv("CI") != null)
             System.out.println("class-monkey instrumentation");
 
+        ClassMonkeyOptions.configure(agentArgs);
+
         if (!inst.isRetransformClassesSupported()) {
             log.warning("class monkey is disabled");
         } else {
@@ -33,6 +35,8 @@ final class ClassMonkey implements ClassFileTransformer {
             } catch (UnmodifiableClassException e) {
                 log.warning("Can't modify URLClassLoader. Monkeys are off.");
             }
+
+            ClassMonkeyMetrics.register();
         }
 
     }
@@ -0,0 +1,121 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.beans.ConstructorProperties;
+import java.util.List;
+
+/**
+ * What class-monkey is doing, registered by the agent as
+ * `fommil:type=ClassMonkey` if `class-monkey.jmx` is true.
+ *
+ * Counts are JVM-wide, since startup or the last reset. Sizes and
+ * populations are as they are now, and are not reset.
+ */
+public interface ClassMonkeyMXBean {
+    /** Resource lookups by every URLClassPath. */
+    long getLookupCount();
+    /** Lookups that found nothing. */
+    long getLookupMissCount();
+    /** Lookups where the package index ruled out every archive. */
+    long getPackageSkipCount();
+    /** Lookups where the Bloom filter ruled out every archive. */
+    long getFilterSkipCount();
+
+    long getCacheHitCount();
+    long getCacheMissCount();
+    long getCacheEvictionCount();
+    /** The size of the resources held by the cache. */
+    long getCacheBytes();
+    long getCacheBudget();
+
+    /** Archives that are shared by the classpaths of this JVM. */
+    int getArchiveCount();
+    /** Archives that were indexed, rather than loaded from the index cache. */
+    long getArchiveIndexedCount();
+    /** The total time taken to index them. */
+    long getArchiveIndexMicros();
+    /** Archives that were indexed again because they changed. */
+    long getArchiveStaleCount();
+    /** Archives that were indexed again after being garbage collected. */
+    long getArchiveCollectedCount();
+
+    /** Zero unless `class-monkey.index.cache` is set. */
+    long getIndexCacheHitCount();
+    long getIndexCacheMissCount();
+    long getIndexCacheStaleCount();
+
+    /** Filesystem metadata calls. */
+    long getStatCount();
+    /** Filesystem metadata calls that were answered from memory. */
+    long getStatAvoidedCount();
+
+    long getPrefetchedCount();
+
+    List<Archive> getArchives();
+
+    /** Zero every count. */
+    void reset();
+
+    /** A snapshot of one archive. */
+    final class Archive {
+        private final String path;
+        private final int users;
+        private final int entries;
+        private final long indexMicros;
+        private final long lookupCount;
+        private final long hitCount;
+        private final int cachedCount;
+        private final long cachedBytes;
+
+        @ConstructorProperties({"path", "users", "entries", "indexMicros", "lookupCount", "hitCount", "cachedCount", "cachedBytes"})
+        public Archive(String path, int users, int entries, long indexMicros, long lookupCount, long hitCount, int cachedCount, long cachedBytes) {
+            this.path = path;
+            this.users = users;
+            this.entries = entries;
+            this.indexMicros = indexMicros;
+            this.lookupCount = lookupCount;
+            this.hitCount = hitCount;
+            this.cachedCount = cachedCount;
+            this.cachedBytes = cachedBytes;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /** Open classpaths that use this archive. */
+        public int getUsers() {
+            return users;
+        }
+
+        /** Zero until it is indexed. */
+        public int getEntries() {
+            return entries;
+        }
+
+        /** The time taken to index it, or to load its index. */
+        public long getIndexMicros() {
+            return indexMicros;
+        }
+
+        /** Lookups that reached this archive. */
+        public long getLookupCount() {
+            return lookupCount;
+        }
+
+        /** Lookups that it answered. */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /** Resources held by the cache. */
+        public int getCachedCount() {
+            return cachedCount;
+        }
+
+        public long getCachedBytes() {
+            return cachedBytes;
+        }
+    }
+}
@@ -0,0 +1,194 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.ObjectName;
+
+import fommil.URLClassPath.ArchiveResourceCache;
+import fommil.URLClassPath.ArchiveResourceProvider;
+
+/**
+ * Gathers the statistics of the rest of class-monkey for JMX. Nothing
+ * is recorded here, so it costs nothing until it is read.
+ */
+final class ClassMonkeyMetrics implements ClassMonkeyMXBean {
+    private static final Logger log = Logger.getLogger(ClassMonkeyMetrics.class.getName());
+
+    static final String NAME = "fommil:type=ClassMonkey";
+
+    // off by default: creating the platform MBeanServer from the agent,
+    // racing with main, breaks servers that configure it (or JUL)
+    // themselves before anything else creates it, e.g. WildFly
+    private static final boolean ENABLED = ClassMonkeyOptions.getBoolean("jmx", false);
+
+    /**
+     * Called by the agent. Creating the platform MBeanServer takes a
+     * few hundred milliseconds, so it is done in the background.
+     */
+    static void register() {
+        if (!ENABLED) return;
+        ClassMonkeyUtils.daemon(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(new ClassMonkeyMetrics(), new ObjectName(NAME));
+                } catch (Exception | LinkageError e) {
+                    log.warning("unable to register " + NAME + " (" + e + ")");
+                    return;
+                }
+                if (log.isLoggable(Level.FINE))
+                    log.fine("registered " + NAME);
+            }
+        }, "class-monkey-jmx").start();
+    }
+
+    @Override
+    public long getLookupCount() {
+        return URLClassPath.allLookups.sum();
+    }
+
+    @Override
+    public long getLookupMissCount() {
+        return URLClassPath.allMisses.sum();
+    }
+
+    @Override
+    public long getPackageSkipCount() {
+        return URLClassPath.allPackageSkips.sum();
+    }
+
+    @Override
+    public long getFilterSkipCount() {
+        return URLClassPath.allFilterSkips.sum();
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return ResourceCache.shared().getHitCount();
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return ResourceCache.shared().getMissCount();
+    }
+
+    @Override
+    public long getCacheEvictionCount() {
+        return ResourceCache.shared().getEvictionCount();
+    }
+
+    @Override
+    public long getCacheBytes() {
+        return ResourceCache.shared().getWeight();
+    }
+
+    @Override
+    public long getCacheBudget() {
+        return ResourceCache.shared().getBudget();
+    }
+
+    @Override
+    public int getArchiveCount() {
+        return ArchiveResourceCache.archives().size();
+    }
+
+    @Override
+    public long getArchiveIndexedCount() {
+        return ArchiveResourceProvider.getIndexedCount();
+    }
+
+    @Override
+    public long getArchiveIndexMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(ArchiveResourceProvider.getIndexNanos());
+    }
+
+    @Override
+    public long getArchiveStaleCount() {
+        return ArchiveResourceCache.getStaleCount();
+    }
+
+    @Override
+    public long getArchiveCollectedCount() {
+        return ArchiveResourceCache.getCollectedCount();
+    }
+
+    @Override
+    public long getIndexCacheHitCount() {
+        IndexCache indexes = IndexCache.shared();
+        return indexes == null ? 0 : indexes.getHitCount();
+    }
+
+    @Override
+    public long getIndexCacheMissCount() {
+        IndexCache indexes = IndexCache.shared();
+        return indexes == null ? 0 : indexes.getMissCount();
+    }
+
+    @Override
+    public long getIndexCacheStaleCount() {
+        IndexCache indexes = IndexCache.shared();
+        return indexes == null ? 0 : indexes.getStaleCount();
+    }
+
+    @Override
+    public long getStatCount() {
+        return FileStats.getStatCalls() + FileStats.getCanonicalCalls();
+    }
+
+    @Override
+    public long getStatAvoidedCount() {
+        return FileStats.getStatsAvoided() + FileStats.getCanonicalAvoided();
+    }
+
+    @Override
+    public long getPrefetchedCount() {
+        return Prefetcher.getPrefetchedCount();
+    }
+
+    @Override
+    public List<Archive> getArchives() {
+        List<Archive> archives = new ArrayList<>();
+        for (ArchiveResourceProvider archive : ArchiveResourceCache.archives()) {
+            archives.add(new Archive(
+                archive.getFile().getPath(),
+                archive.getUserCount(),
+                archive.getEntryCount(),
+                TimeUnit.NANOSECONDS.toMicros(archive.getIndexTime()),
+                archive.getLookupCount(),
+                archive.getHitCount(),
+                archive.getCache().size(),
+                archive.getCache().getWeight()
+            ));
+        }
+        Collections.sort(archives, new Comparator<Archive>() {
+            @Override
+            public int compare(Archive a, Archive b) {
+                return a.getPath().compareTo(b.getPath());
+            }
+        });
+        return archives;
+    }
+
+    @Override
+    public void reset() {
+        URLClassPath.allLookups.reset();
+        URLClassPath.allMisses.reset();
+        URLClassPath.allPackageSkips.reset();
+        URLClassPath.allFilterSkips.reset();
+        ResourceCache.shared().resetCounts();
+        ArchiveResourceCache.resetCounts();
+        ArchiveResourceProvider.resetIndexCounts();
+        IndexCache indexes = IndexCache.shared();
+        if (indexes != null) indexes.resetCounts();
+        FileStats.resetCounts();
+        Prefetcher.resetCounts();
+    }
+}
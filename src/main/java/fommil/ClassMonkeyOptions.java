@@ -0,0 +1,180 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Tuning options, read from system properties with the prefix
+ * "class-monkey.", e.g. `-Dclass-monkey.offheap.budget=64m`, or from
+ * the agent arguments, separated by commas, without the prefix, e.g.
+ * `-javaagent:class-monkey.jar=profile=low-memory,cache.budget=16m`.
+ *
+ * The `profile` option names a set of defaults, see PROFILES. A
+ * system property wins over an agent argument, which wins over the
+ * profile, which wins over the default.
+ *
+ * Options are typically read once, when the class that uses them is
+ * initialised, so the agent arguments must be given to configure
+ * before anything else. Malformed values are logged and ignored.
+ */
+final class ClassMonkeyOptions {
+    private static final Logger log = Logger.getLogger(ClassMonkeyOptions.class.getName());
+
+    static final String PREFIX = "class-monkey.";
+
+    /**
+     * - `low-memory` keeps as little as possible: a small cache that
+     *   only holds classes read three times, small inflated config,
+     *   lower streaming threshold and archives indexed on first use
+     *   by a single thread.
+     * - `fast-startup` indexes archives on first use, reuses the
+     *   indexes of previous JVMs (kept in ~/.cache/class-monkey) and
+     *   trusts file stats for a second. Traces are left out: replay
+     *   competes with the application when there are few cores.
+     * - `throughput` trades memory for speed once warm: a large cache
+     *   that holds every class it reads (as LZ4) and more config
+     *   inflated, listed directories, trusted file stats and archive
+     *   caches that outlive their classloaders for a while.
+     */
+    static final Map<String, Map<String, String>> PROFILES;
+    static {
+        Map<String, Map<String, String>> profiles = new HashMap<>();
+
+        Map<String, String> lowMemory = new HashMap<>();
+        lowMemory.put("cache.budget", "8m");
+        lowMemory.put("cache.class.reads", "3");
+        lowMemory.put("cache.inflated.max", "4k");
+        lowMemory.put("stream.threshold", "256k");
+        lowMemory.put("index.lazy", "true");
+        lowMemory.put("index.threads", "1");
+        profiles.put("low-memory", Collections.unmodifiableMap(lowMemory));
+
+        Map<String, String> fastStartup = new HashMap<>();
+        fastStartup.put("index.lazy", "true");
+        // private to the user, not somewhere that others could plant files
+        fastStartup.put("index.cache", new File(System.getProperty("user.home"), ".cache" + File.separator + "class-monkey").getPath());
+        fastStartup.put("stat.ttl", "1s");
+        profiles.put("fast-startup", Collections.unmodifiableMap(fastStartup));
+
+        Map<String, String> throughput = new HashMap<>();
+        throughput.put("cache.budget", "256m");
+        throughput.put("cache.class.reads", "1");
+        throughput.put("cache.inflated.max", "256k");
+        throughput.put("cache.codec", "lz4");
+        throughput.put("directory.index", "true");
+        throughput.put("stat.ttl", "5s");
+        throughput.put("release.linger", "30s");
+        profiles.put("throughput", Collections.unmodifiableMap(throughput));
+
+        PROFILES = Collections.unmodifiableMap(profiles);
+    }
+
+    private static volatile Map<String, String> args = Collections.emptyMap();
+    private static volatile Map<String, String> profile = Collections.emptyMap();
+
+    private ClassMonkeyOptions() { }
+
+    /**
+     * Takes the agent arguments, `key=value` pairs separated by
+     * commas, which may be null.
+     */
+    static void configure(String agentArgs) {
+        Map<String, String> parsed = new HashMap<>();
+        if (agentArgs != null) {
+            for (String arg : agentArgs.split(",")) {
+                if (arg.trim().isEmpty()) continue;
+                int eq = arg.indexOf('=');
+                if (eq <= 0) {
+                    log.warning("ignoring agent argument " + arg + " (expected key=value)");
+                    continue;
+                }
+                String key = arg.substring(0, eq).trim();
+                if (key.startsWith(PREFIX)) key = key.substring(PREFIX.length());
+                parsed.put(key, arg.substring(eq + 1));
+            }
+        }
+        args = parsed;
+
+        String name = get("profile", null);
+        Map<String, String> chosen = name == null ? null : PROFILES.get(name.toLowerCase(Locale.ROOT));
+        if (name != null && chosen == null)
+            log.warning("ignoring " + PREFIX + "profile=" + name + " (expected one of " + PROFILES.keySet() + ")");
+        profile = chosen == null ? Collections.<String, String>emptyMap() : chosen;
+    }
+
+    static String get(String key, String fallback) {
+        String value = System.getProperty(PREFIX + key);
+        if (value == null) value = args.get(key);
+        if (value == null) value = profile.get(key);
+        if (value == null) return fallback;
+        return value.trim();
+    }
+
+    static boolean getBoolean(String key, boolean fallback) {
+        String value = get(key, null);
+        if (value == null) return fallback;
+        switch (value.toLowerCase(Locale.ROOT)) {
+        case "true": case "yes": case "on":
+            return true;
+        case "false": case "no": case "off":
+            return false;
+        default:
+            log.warning("ignoring " + PREFIX + key + "=" + value + " (expected a boolean)");
+            return fallback;
+        }
+    }
+
+    static int getInt(String key, int fallback) {
+        String value = get(key, null);
+        if (value == null) return fallback;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            log.warning("ignoring " + PREFIX + key + "=" + value + " (expected an integer)");
+            return fallback;
+        }
+    }
+
+    /** A number of bytes with an optional k, m or g suffix. */
+    static long getBytes(String key, long fallback) {
+        String value = get(key, null);
+        if (value == null) return fallback;
+        return parse(key, value, fallback, "kmg", new long[]{ 1L << 10, 1L << 20, 1L << 30 }, "a size");
+    }
+
+    /** A duration in milliseconds, with an optional ms, s or m suffix. */
+    static long getMillis(String key, long fallback) {
+        String value = get(key, null);
+        if (value == null) return fallback;
+        String lower = value.toLowerCase(Locale.ROOT);
+        if (lower.endsWith("ms")) return parse(key, lower.substring(0, lower.length() - 2), fallback, "", new long[0], "a duration");
+        return parse(key, lower, fallback, "sm", new long[]{ 1000L, 60000L }, "a duration");
+    }
+
+    private static long parse(String key, String value, long fallback, String suffixes, long[] multipliers, String expected) {
+        String lower = value.toLowerCase(Locale.ROOT);
+        long multiplier = 1;
+        if (!lower.isEmpty()) {
+            int suffix = suffixes.indexOf(lower.charAt(lower.length() - 1));
+            if (suffix >= 0) {
+                multiplier = multipliers[suffix];
+                lower = lower.substring(0, lower.length() - 1);
+            }
+        }
+        try {
+            long parsed = Long.parseLong(lower.trim());
+            if (parsed < 0) throw new NumberFormatException("negative");
+            if (parsed > Long.MAX_VALUE / multiplier) throw new NumberFormatException("too large");
+            return parsed * multiplier;
+        } catch (NumberFormatException e) {
+            log.warning("ignoring " + PREFIX + key + "=" + value + " (expected " + expected + ")");
+            return fallback;
+        }
+    }
+}
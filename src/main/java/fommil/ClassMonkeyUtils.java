@@ -3,6 +3,7 @@
 package fommil;
 
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -10,8 +11,13 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
@@ -24,60 +30,223 @@ public final class ClassMonkeyUtils {
 
     private ClassMonkeyUtils () { }
 
+    // codecs hold native memory, so only a few idle ones are kept
+    private static final int POOLED = Math.max(2, 2 * Runtime.getRuntime().availableProcessors());
+    private static final CodecPool<Inflater> inflaters = new CodecPool<Inflater>() {
+        @Override Inflater create() { return new Inflater(); }
+        @Override void reset(Inflater codec) { codec.reset(); }
+        @Override void end(Inflater codec) { codec.end(); }
+    };
+    private static final CodecPool<Inflater> rawInflaters = new CodecPool<Inflater>() {
+        @Override Inflater create() { return new Inflater(true); }
+        @Override void reset(Inflater codec) { codec.reset(); }
+        @Override void end(Inflater codec) { codec.end(); }
+    };
+    private static final CodecPool<Deflater> deflaters = new CodecPool<Deflater>() {
+        @Override Deflater create() { return new Deflater(); }
+        @Override void reset(Deflater codec) { codec.reset(); }
+        @Override void end(Deflater codec) { codec.end(); }
+    };
+    private static final CodecPool<Deflater> rawDeflaters = new CodecPool<Deflater>() {
+        @Override Deflater create() { return new Deflater(Deflater.DEFAULT_COMPRESSION, true); }
+        @Override void reset(Deflater codec) { codec.reset(); }
+        @Override void end(Deflater codec) { codec.end(); }
+    };
+
+    // deflated output is written here before it is copied into an
+    // array of the exact size, larger outputs are rare enough to have
+    // their own array
+    private static final int SCRATCH = 64 * 1024;
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
+
+    // nowrap inflation requires a dummy byte at the end of the input
+    private static final byte[] PADDING = new byte[1];
+
     /**
      * Fully consume an InputStream into a byte array, and close the input.
      */
     public static byte[] slurp(InputStream in) throws IOException {
+        return slurp(in, -1);
+    }
+
+    /**
+     * As slurp, reading straight into an array of `sizeHint' bytes
+     * (e.g. the length of a file) if the hint is right.
+     */
+    public static byte[] slurp(InputStream in, long sizeHint) throws IOException {
         if (in == null) throw new NullPointerException("`in' must not be null");
         try {
-            int nRead;
-            byte[] buffer = new byte[1024];
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            while ((nRead = in.read(buffer, 0, buffer.length)) != -1) {
-                out.write(buffer, 0, nRead);
+            if (sizeHint < 0 || sizeHint > Integer.MAX_VALUE - 8) {
+                int nRead;
+                byte[] buffer = new byte[8192];
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                while ((nRead = in.read(buffer, 0, buffer.length)) != -1) {
+                    out.write(buffer, 0, nRead);
+                }
+                return out.toByteArray();
+            }
+            byte[] bytes = new byte[(int) sizeHint];
+            int count = 0;
+            while (true) {
+                if (count == bytes.length) {
+                    // usually the end, but the hint may have been wrong
+                    int next = in.read();
+                    if (next < 0) return bytes;
+                    bytes = Arrays.copyOf(bytes, Math.max(8192, 2 * bytes.length));
+                    bytes[count++] = (byte) next;
+                }
+                int read = in.read(bytes, count, bytes.length - count);
+                if (read < 0) return count == bytes.length ? bytes : Arrays.copyOf(bytes, count);
+                count += read;
             }
-            return out.toByteArray();
         } finally {
             in.close();
         }
     }
 
     public static byte[] deflate(byte[] data) throws IOException {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            Deflater deflater = new Deflater();
-            try {
-                deflater.setInput(data);
-                deflater.finish();
-
-                byte[] buffer = new byte[1024];
-                while (!deflater.finished()) {
-                    int count = deflater.deflate(buffer);
-                    out.write(buffer, 0, count);
+        return deflate(data, 0, data.length);
+    }
+
+    public static byte[] deflate(byte[] data, int offset, int length) throws IOException {
+        return deflate(deflaters, data, offset, length, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    public static byte[] enflate(byte[] data) throws IOException {
+        return enflate(data, -1);
+    }
+
+    /**
+     * As enflate, inflating straight into an array of `sizeHint' bytes
+     * if the hint is right.
+     */
+    public static byte[] enflate(byte[] data, int sizeHint) throws IOException {
+        Inflater inflater = inflaters.take();
+        try {
+            inflater.setInput(data);
+            byte[] out = new byte[sizeHint < 0 ? Math.max(1024, 4 * data.length) : sizeHint];
+            int count = 0;
+            while (true) {
+                count += inflater.inflate(out, count, out.length - count);
+                if (inflater.finished()) break;
+                if (count < out.length) {
+                    if (inflater.needsDictionary()) throw new IOException("deflate data requires a dictionary");
+                    if (inflater.needsInput()) throw new EOFException("unexpected end of deflate data");
+                    continue;
                 }
-                return out.toByteArray();
-            } finally {
-                deflater.end();
+                // the hint was wrong, or there wasn't one
+                out = Arrays.copyOf(out, Math.max(1024, 2 * out.length));
             }
+            return count == out.length ? out : Arrays.copyOf(out, count);
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflaters.give(inflater);
         }
     }
 
-    public static byte[] enflate(byte[] data) throws IOException {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            Inflater inflater = new Inflater();
-            try {
-                inflater.setInput(data);
-
-                byte[] buffer = new byte[1024];
-                while (!inflater.finished()) {
-                    int count = inflater.inflate(buffer);
-                    out.write(buffer, 0, count);
-                }
-                return out.toByteArray();
-            } finally {
-                inflater.end();
+    /**
+     * Deflate into raw deflate data (i.e. without a zlib header, as
+     * stored in zip archives).
+     */
+    public static byte[] deflateRaw(byte[] data, int offset, int length) throws IOException {
+        return deflateRaw(data, offset, length, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /** As deflateRaw, at a Deflater compression level. */
+    public static byte[] deflateRaw(byte[] data, int offset, int length, int level) throws IOException {
+        return deflate(rawDeflaters, data, offset, length, level);
+    }
+
+    // into an array of the exact size
+    private static byte[] deflate(CodecPool<Deflater> pool, byte[] data, int offset, int length, int level) {
+        Deflater deflater = pool.take();
+        try {
+            deflater.setLevel(level);
+            deflater.setInput(data, offset, length);
+            deflater.finish();
+            // zlib's deflateBound, plus the zlib header and trailer
+            long bound = (long) length + (length >>> 12) + (length >>> 14) + (length >>> 25) + 13 + 6;
+            byte[] out = bound <= SCRATCH ? scratch() : new byte[(int) Math.min(bound, Integer.MAX_VALUE - 8)];
+            int count = 0;
+            while (!deflater.finished()) {
+                if (count == out.length) out = Arrays.copyOf(out, 2 * out.length);
+                count += deflater.deflate(out, count, out.length - count);
+            }
+            return Arrays.copyOf(out, count);
+        } finally {
+            pool.give(deflater);
+        }
+    }
+
+    private static byte[] scratch() {
+        byte[] buf = scratch.get();
+        if (buf == null) {
+            buf = new byte[SCRATCH];
+            scratch.set(buf);
+        }
+        return buf;
+    }
+
+    public static int crc32(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Inflate raw deflate data (i.e. without a zlib header, as stored
+     * in zip archives) of a known inflated size.
+     */
+    public static byte[] enflateRaw(byte[] data, int offset, int length, int size) throws IOException {
+        if (size < 0) throw new IOException("entry is too large");
+        byte[] out = new byte[size];
+        Inflater inflater = rawInflaters.take();
+        try {
+            inflater.setInput(data, offset, length);
+            int count = 0;
+            boolean padded = false;
+            while (count < size) {
+                int read = inflater.inflate(out, count, size - count);
+                count += read;
+                if (inflater.finished()) break;
+                if (read > 0) continue;
+                if (inflater.needsDictionary())
+                    throw new IOException("deflate data requires a dictionary");
+                if (padded) throw new EOFException("unexpected end of deflate data");
+                inflater.setInput(PADDING);
+                padded = true;
             }
+            if (count != size)
+                throw new IOException("inflated " + count + " bytes but expected " + size);
+            return out;
         } catch (DataFormatException e) {
             throw new IOException(e);
+        } finally {
+            rawInflaters.give(inflater);
+        }
+    }
+
+    /**
+     * A few idle codecs, reset and ready to be reused. A codec that
+     * isn't returned (e.g. by a thread that dies) is ended by its
+     * finalizer, like any other.
+     */
+    private static abstract class CodecPool<T> {
+        private final ArrayBlockingQueue<T> idle = new ArrayBlockingQueue<>(POOLED);
+
+        abstract T create();
+        abstract void reset(T codec);
+        abstract void end(T codec);
+
+        T take() {
+            T codec = idle.poll();
+            return codec != null ? codec : create();
+        }
+
+        void give(T codec) {
+            reset(codec);
+            if (!idle.offer(codec)) end(codec);
         }
     }
 
@@ -112,4 +281,23 @@ public final class ClassMonkeyUtils {
             throw new IllegalArgumentException("parsing " + url, e);
         }
     }
+
+    /**
+     * An unstarted daemon thread that holds nothing of whichever thread
+     * happened to create it: not its context ClassLoader, nor (through
+     * its AccessControlContext) the protection domains on its stack.
+     * Otherwise a long-lived thread, created lazily by a webapp or
+     * build plugin, would pin that classloader for the life of the JVM.
+     */
+    static Thread daemon(final Runnable task, final String name) {
+        return AccessController.doPrivileged(new PrivilegedAction<Thread>() {
+            @Override
+            public Thread run() {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                thread.setContextClassLoader(null);
+                return thread;
+            }
+        });
+    }
 }
@@ -0,0 +1,261 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional record of the resources that each classpath loads, so that
+ * the next JVM over the same classpath (e.g. a test fork, or another
+ * sbt session) can read them into the cache before they are asked for.
+ * Think of it as the AppCDS class list, for URLClassLoaders.
+ *
+ * Enabled by setting `class-monkey.trace` to a directory, which may be
+ * shared by concurrent JVMs. A classpath is identified by the URIs that
+ * it was created with, in order, and all instances of the same
+ * classpath in a JVM share a Recording of the names that were found by
+ * getResource, in the order that they were first found.
+ *
+ * Recordings are written when a classpath is closed and at shutdown,
+ * replacing the previous trace. A Recording is dropped once every
+ * classpath that uses it is closed, so a JVM that keeps creating new
+ * classpaths only holds the recordings of the open ones. Replaying
+ * is only ever a hint: names that no longer exist are ignored, see
+ * Prefetcher#replay.
+ */
+final class ClassTrace {
+    private static final Logger log = Logger.getLogger(ClassTrace.class.getName());
+
+    private static final ClassTrace shared = create(ClassMonkeyOptions.get("trace", null));
+
+    // "CMTR"
+    private static final int MAGIC = 0x434d5452;
+    private static final int VERSION = 1;
+    // names per classpath, beyond which a trace is unlikely to be useful
+    private static final int LIMIT = 65536;
+
+    private final File dir;
+    // written with the lock held, read by storeAll at shutdown
+    private final ConcurrentMap<String, Recording> recordings = new ConcurrentHashMap<>();
+
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+
+    private ClassTrace(File dir) {
+        this.dir = dir;
+    }
+
+    /** @return null if disabled, or the directory is unusable. */
+    static ClassTrace create(String dir) {
+        if (dir == null || dir.isEmpty()) return null;
+        // replayed traces choose what is read, so are trusted too
+        File file = IndexCache.privateDirectory(dir, "trace");
+        if (file == null) return null;
+        final ClassTrace trace = new ClassTrace(file);
+        Runtime.getRuntime().addShutdownHook(new Thread("class-monkey-trace") {
+            @Override
+            public void run() {
+                trace.storeAll();
+            }
+        });
+        return trace;
+    }
+
+    /** @return the JVM-wide trace, or null if disabled. */
+    static ClassTrace shared() {
+        return shared;
+    }
+
+    /** The names that a classpath has found, in order, without duplicates. */
+    static final class Recording {
+        final String classpath;
+        private final ConcurrentMap<String, Boolean> seen = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        // names recorded since the last store
+        private final AtomicInteger dirty = new AtomicInteger();
+        // open classpaths, guarded by the ClassTrace
+        private int users;
+
+        Recording(String classpath) {
+            this.classpath = classpath;
+        }
+
+        // cheap enough to be called on every successful lookup
+        void record(String name) {
+            if (seen.containsKey(name) || size.get() >= LIMIT) return;
+            if (seen.putIfAbsent(name, Boolean.TRUE) == null && size.incrementAndGet() <= LIMIT) {
+                order.add(name);
+                dirty.incrementAndGet();
+            }
+        }
+
+        List<String> names() {
+            return new ArrayList<>(order);
+        }
+
+        @Override
+        public String toString() {
+            return "Recording(" + size + " names)";
+        }
+    }
+
+    /** A classpath, as recorded in the trace. */
+    static String classpath(Collection<URI> uris) {
+        StringBuilder classpath = new StringBuilder();
+        for (URI uri : uris) {
+            if (classpath.length() > 0) classpath.append('\n');
+            classpath.append(uri);
+        }
+        return classpath.toString();
+    }
+
+    /**
+     * The JVM-wide recording of `classpath', for a new user who must
+     * close it.
+     */
+    synchronized Recording recording(String classpath) {
+        Recording recording = recordings.get(classpath);
+        if (recording == null) {
+            recording = new Recording(classpath);
+            recordings.put(classpath, recording);
+        }
+        recording.users++;
+        return recording;
+    }
+
+    /** Store the recording, and forget it if this was its last user. */
+    void close(Recording recording) {
+        store(recording);
+        synchronized (this) {
+            if (--recording.users == 0) recordings.remove(recording.classpath, recording);
+        }
+    }
+
+    /** @return the names recorded by a previous JVM, or null if there isn't a good trace. */
+    List<String> load(String classpath) {
+        File traced = fileFor(classpath);
+        try {
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(traced.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+            int end = in.capacity() - 8;
+            if (end < 12 || in.getInt(0) != MAGIC || in.getInt(4) != VERSION)
+                throw new IOException("bad header");
+            if (IndexCache.checksum(in, 0, end) != in.getLong(end))
+                throw new IOException("bad checksum");
+            in.limit(end);
+            in.position(8);
+            byte[] recorded = new byte[in.getInt()];
+            in.get(recorded);
+            if (!Arrays.equals(recorded, classpath.getBytes(StandardCharsets.UTF_8))) {
+                // a hash collision, it will be replaced
+                if (log.isLoggable(Level.FINE))
+                    log.fine(traced + " is for a different classpath");
+                return null;
+            }
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining()) throw new IOException("bad count");
+            List<String> names = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[in.getInt()];
+                in.get(name);
+                names.add(new String(name, StandardCharsets.UTF_8));
+            }
+            if (in.hasRemaining()) throw new IOException("trailing data");
+            loaded.incrementAndGet();
+            if (log.isLoggable(Level.FINER))
+                log.finer("loaded " + names.size() + " names from " + traced);
+            return names;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            if (log.isLoggable(Level.FINE))
+                log.fine("ignoring " + traced + ": " + e);
+            return null;
+        }
+    }
+
+    /** Best effort, and only if there is something new to say. */
+    void store(Recording recording) {
+        int dirty = recording.dirty.getAndSet(0);
+        if (dirty == 0) return;
+        List<String> names = recording.names();
+        byte[] classpath = recording.classpath.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> encoded = new ArrayList<>(names.size());
+        long total = 8L + 4 + classpath.length + 4 + 8;
+        for (String name : names) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            encoded.add(bytes);
+            total += 4 + bytes.length;
+        }
+        if (total > Integer.MAX_VALUE) return;
+        ByteBuffer buffer = ByteBuffer.allocate((int) total).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(classpath.length);
+        buffer.put(classpath);
+        buffer.putInt(encoded.size());
+        for (byte[] bytes : encoded) {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.putLong(IndexCache.checksum(buffer, 0, buffer.position()));
+        buffer.flip();
+
+        File traced = fileFor(recording.classpath);
+        try {
+            IndexCache.write(dir, traced, buffer);
+            stored.incrementAndGet();
+            if (log.isLoggable(Level.FINER))
+                log.finer("stored " + names.size() + " names in " + traced);
+        } catch (IOException e) {
+            // try again next time
+            recording.dirty.addAndGet(dirty);
+            if (log.isLoggable(Level.FINE))
+                log.fine("could not store " + traced + ": " + e);
+        }
+    }
+
+    void storeAll() {
+        for (Recording recording : recordings.values()) {
+            store(recording);
+        }
+    }
+
+    // URIs may be long, and there may be hundreds of them
+    private File fileFor(String classpath) {
+        ByteBuffer bytes = ByteBuffer.wrap(classpath.getBytes(StandardCharsets.UTF_8)).order(ByteOrder.LITTLE_ENDIAN);
+        long hash = IndexCache.checksum(bytes, 0, bytes.capacity());
+        return new File(dir, String.format("%016x.trace", hash));
+    }
+
+    long getLoadedCount() {
+        return loaded.get();
+    }
+
+    long getStoredCount() {
+        return stored.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ClassTrace(" + dir + ", classpaths = " + recordings.size() + ", loaded = " + loaded + ", stored = " + stored + ")";
+    }
+}
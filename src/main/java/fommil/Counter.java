@@ -0,0 +1,94 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter for hot paths, in the style of java.util.concurrent's
+ * LongAdder (which is not available in Java 7).
+ *
+ * Updates go to a single base value until two threads collide, after
+ * which each thread adds to one of several stripes, on separate cache
+ * lines, chosen by its id. Single core machines never stripe.
+ *
+ * Reads and resets are not atomic with respect to concurrent updates,
+ * which is fine for statistics.
+ */
+final class Counter {
+    // longs in a cache line, so that stripes don't share
+    private static final int PAD = 8;
+    private static final int STRIPES = stripes(Runtime.getRuntime().availableProcessors());
+
+    private final AtomicLong base = new AtomicLong();
+    // null until there is contention
+    private volatile AtomicLongArray stripes;
+
+    private static int stripes(int cpus) {
+        int stripes = 1;
+        while (stripes < cpus && stripes < 64) stripes <<= 1;
+        return stripes;
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(long delta) {
+        AtomicLongArray stripes = this.stripes;
+        if (stripes == null) {
+            if (STRIPES == 1) {
+                base.addAndGet(delta);
+                return;
+            }
+            long current = base.get();
+            if (base.compareAndSet(current, current + delta)) return;
+            stripes = stripes();
+        }
+        stripes.getAndAdd(stripe() * PAD, delta);
+    }
+
+    private AtomicLongArray stripes() {
+        AtomicLongArray stripes = this.stripes;
+        if (stripes == null) {
+            synchronized (this) {
+                stripes = this.stripes;
+                if (stripes == null) this.stripes = stripes = new AtomicLongArray(STRIPES * PAD);
+            }
+        }
+        return stripes;
+    }
+
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        // spreads sequential ids
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 58) & (STRIPES - 1);
+    }
+
+    long sum() {
+        long sum = base.get();
+        AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                sum += stripes.get(i * PAD);
+            }
+        }
+        return sum;
+    }
+
+    void reset() {
+        base.set(0);
+        AtomicLongArray stripes = this.stripes;
+        if (stripes != null) {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes.set(i * PAD, 0);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Long.toString(sum());
+    }
+}
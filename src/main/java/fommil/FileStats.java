@@ -0,0 +1,193 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived cache of file metadata and canonical paths, so that
+ * repeatedly creating classloaders over the same classpath doesn't
+ * cost several syscalls per jar every time.
+ *
+ * Disabled by default. Set `class-monkey.stat.ttl` (e.g. `2s`) to
+ * reuse metadata for that long: a file that is replaced within the
+ * TTL will not be noticed until it expires. While enabled, canonical
+ * paths are memoised indefinitely, i.e. symlinks are assumed not to
+ * change.
+ *
+ * Even when disabled, a single stat replaces the separate isFile,
+ * lastModified and length calls.
+ *
+ * Callers that have registered the parent directory with the
+ * FileWatcher may ask for `watched' entries, which are reused until
+ * the watcher invalidates them, regardless of the TTL.
+ */
+final class FileStats {
+    // only changed by tests
+    private static volatile long ttl = TimeUnit.MILLISECONDS.toNanos(ClassMonkeyOptions.getMillis("stat.ttl", 0));
+
+    private static final ConcurrentMap<String, Stat> stats = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, String> canonical = new ConcurrentHashMap<>();
+
+    // incremented by every invalidation, so that a stat that raced
+    // with one isn't cached
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final Counter statCalls = new Counter();
+    private static final Counter statsAvoided = new Counter();
+    private static final Counter canonicalCalls = new Counter();
+    private static final Counter canonicalAvoided = new Counter();
+
+    private FileStats() { }
+
+    static final class Stat {
+        final boolean isFile;
+        final boolean isDirectory;
+        final long lastModified;
+        final long length;
+        final long created;
+        final boolean watched;
+
+        Stat(boolean isFile, boolean isDirectory, long lastModified, long length, long created, boolean watched) {
+            this.isFile = isFile;
+            this.isDirectory = isDirectory;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.created = created;
+            this.watched = watched;
+        }
+    }
+
+    static Stat stat(File file) {
+        return stat(file, false);
+    }
+
+    static Stat stat(File file, boolean watched) {
+        String path = file.getAbsolutePath();
+        long now = System.nanoTime();
+        long ttl = FileStats.ttl;
+        if (ttl > 0 || watched) {
+            Stat cached = stats.get(path);
+            if (cached != null && (cached.watched || now - cached.created < ttl)) {
+                // isFile, lastModified and length
+                statsAvoided.add(3);
+                return cached;
+            }
+        }
+        statCalls.increment();
+        long before = generation.get();
+        Stat stat;
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            stat = new Stat(attrs.isRegularFile(), attrs.isDirectory(), attrs.lastModifiedTime().toMillis(), attrs.size(), now, watched);
+        } catch (NoSuchFileException e) {
+            stat = new Stat(false, false, 0L, 0L, now, watched);
+        } catch (IOException e) {
+            stat = new Stat(file.isFile(), file.isDirectory(), file.lastModified(), file.length(), now, watched);
+        }
+        if (ttl > 0 || watched) {
+            stats.put(path, stat);
+            if (generation.get() != before) stats.remove(path, stat);
+        }
+        return stat;
+    }
+
+    /** Zero if `file' doesn't exist, a single syscall if nothing is cached. */
+    static long lastModified(File file, boolean watched) {
+        if (ttl > 0 || watched) return stat(file, watched).lastModified;
+        statCalls.increment();
+        return file.lastModified();
+    }
+
+    /** Interned, so that it can be compared by reference. */
+    static String canonicalPath(File file) throws IOException {
+        return canonicalPath(file, false);
+    }
+
+    static String canonicalPath(File file, boolean watched) throws IOException {
+        String path = file.getAbsolutePath();
+        boolean cache = ttl > 0 || watched;
+        if (cache) {
+            String cached = canonical.get(path);
+            if (cached != null) {
+                canonicalAvoided.increment();
+                return cached;
+            }
+        }
+        canonicalCalls.increment();
+        long before = generation.get();
+        String resolved = file.getCanonicalPath().intern();
+        if (cache) {
+            canonical.put(path, resolved);
+            if (generation.get() != before) canonical.remove(path, resolved);
+        }
+        return resolved;
+    }
+
+    /** Forget everything about `file', e.g. when it is known to have changed. */
+    static void invalidate(File file) {
+        generation.incrementAndGet();
+        String path = file.getAbsolutePath();
+        stats.remove(path);
+        canonical.remove(path);
+    }
+
+    /** Forget everything about `dir' and anything beneath it. */
+    static void invalidateTree(File dir) {
+        generation.incrementAndGet();
+        String path = dir.getAbsolutePath();
+        String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+        for (String key : stats.keySet()) {
+            if (key.equals(path) || key.startsWith(prefix)) stats.remove(key);
+        }
+        for (String key : canonical.keySet()) {
+            if (key.equals(path) || key.startsWith(prefix)) canonical.remove(key);
+        }
+    }
+
+    /** Forget everything, e.g. when changes may have been missed. */
+    static void clear() {
+        generation.incrementAndGet();
+        stats.clear();
+        canonical.clear();
+    }
+
+    /** The TTL in milliseconds, returning the previous one, for tests. */
+    static long setTtl(long millis) {
+        long previous = TimeUnit.NANOSECONDS.toMillis(ttl);
+        ttl = TimeUnit.MILLISECONDS.toNanos(millis);
+        return previous;
+    }
+
+    static long getStatCalls() {
+        return statCalls.sum();
+    }
+
+    /** Filesystem calls that were answered from the cache. */
+    static long getStatsAvoided() {
+        return statsAvoided.sum();
+    }
+
+    static long getCanonicalCalls() {
+        return canonicalCalls.sum();
+    }
+
+    static long getCanonicalAvoided() {
+        return canonicalAvoided.sum();
+    }
+
+    static void resetCounts() {
+        statCalls.reset();
+        statsAvoided.reset();
+        canonicalCalls.reset();
+        canonicalAvoided.reset();
+    }
+}
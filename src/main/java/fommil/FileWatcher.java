@@ -0,0 +1,303 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Optional background thread that watches the directories containing
+ * archives, and class directories, so that changes are pushed to the
+ * caches instead of being polled for on every lookup.
+ *
+ * Every event invalidates FileStats for the affected path and its
+ * directory (whose mtime has changed), and Listeners that subscribed
+ * to a tree are told about changes anywhere beneath it. An overflow,
+ * or a directory that can no longer be watched, invalidates
+ * everything that may have been affected.
+ *
+ * Every register must be balanced by an unregister, and a directory
+ * stops being watched when its last user unregisters. What FileStats
+ * knows about it is then forgotten, since changes would be missed.
+ *
+ * Enabled by `class-monkey.watch=true`. On platforms without native
+ * file notifications (e.g. OS X) the JDK polls, so changes may take a
+ * few seconds to be noticed. On Windows the WatchService holds every
+ * watched directory open, so it can't be deleted or renamed until it
+ * stops being watched.
+ */
+final class FileWatcher implements Runnable {
+    private static final Logger log = Logger.getLogger(FileWatcher.class.getName());
+
+    private static final boolean ENABLED = ClassMonkeyOptions.getBoolean("watch", false);
+    private static volatile FileWatcher shared;
+    private static volatile boolean failed;
+
+    interface Listener {
+        /** `path' is absolute, it may be a directory whose contents all changed. */
+        void changed(Path path);
+    }
+
+    private static final class Subscription {
+        final Path root;
+        final WeakReference<Listener> listener;
+
+        Subscription(Path root, Listener listener) {
+            this.root = root;
+            this.listener = new WeakReference<>(listener);
+        }
+    }
+
+    private final WatchService service;
+    private final ConcurrentMap<Path, WatchKey> keys = new ConcurrentHashMap<>();
+    // directories whose new subdirectories are also watched
+    private final Set<Path> recursive = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    // the users of each registered directory, plain and recursive, guarded by this
+    private final Map<Path, int[]> users = new HashMap<>();
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong overflows = new AtomicLong();
+
+    private FileWatcher(WatchService service) {
+        this.service = service;
+    }
+
+    /** @return the JVM-wide watcher, or null if disabled or unavailable. */
+    static FileWatcher shared() {
+        if (!ENABLED || failed) return null;
+        if (shared == null) {
+            synchronized (FileWatcher.class) {
+                if (shared == null && !failed) {
+                    try {
+                        FileWatcher watcher = new FileWatcher(FileSystems.getDefault().newWatchService());
+                        ClassMonkeyUtils.daemon(watcher, "class-monkey-watch").start();
+                        shared = watcher;
+                    } catch (IOException | UnsupportedOperationException e) {
+                        log.warning("file watching is unavailable: " + e);
+                        failed = true;
+                    }
+                }
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Watch `dir' for changes to its entries (and those of all its
+     * subdirectories, if `recursive') before returning.
+     *
+     * @return false if it cannot be watched, e.g. it doesn't exist,
+     * otherwise the caller must unregister it when done.
+     */
+    synchronized boolean register(File dir, boolean recursive) {
+        if (dir == null) return false;
+        Path path = dir.getAbsoluteFile().toPath();
+        try {
+            if (!keys.containsKey(path) || recursive && !this.recursive.contains(path)) {
+                if (recursive) registerTree(path);
+                else register(path);
+            }
+        } catch (IOException | ClosedWatchServiceException e) {
+            if (log.isLoggable(Level.FINE))
+                log.fine("cannot watch " + path + ": " + e);
+            return false;
+        }
+        int[] count = users.get(path);
+        if (count == null) users.put(path, count = new int[2]);
+        count[recursive ? 1 : 0]++;
+        return true;
+    }
+
+    /** Balances a successful register, with the same arguments. */
+    synchronized void unregister(File dir, boolean recursive) {
+        Path path = dir.getAbsoluteFile().toPath();
+        int[] count = users.get(path);
+        if (count == null || count[recursive ? 1 : 0] == 0) {
+            log.warning(path + " was unregistered more times than it was registered");
+            return;
+        }
+        if (--count[recursive ? 1 : 0] > 0) return;
+        if (count[0] == 0 && count[1] == 0) users.remove(path);
+
+        List<Path> affected = new ArrayList<>();
+        if (recursive) {
+            for (Path watched : keys.keySet()) {
+                if (watched.startsWith(path)) affected.add(watched);
+            }
+        } else {
+            affected.add(path);
+        }
+        for (Path watched : affected) {
+            if (!isRecursive(watched)) this.recursive.remove(watched);
+            if (isRegistered(watched)) continue;
+            WatchKey key = keys.remove(watched);
+            if (key != null) key.cancel();
+            this.recursive.remove(watched);
+            FileStats.invalidateTree(watched.toFile());
+            if (log.isLoggable(Level.FINER))
+                log.finer("stopped watching " + watched);
+        }
+    }
+
+    // guarded by this, whether `dir' is beneath a tree that is still registered
+    private boolean isRecursive(Path dir) {
+        for (Map.Entry<Path, int[]> entry : users.entrySet()) {
+            if (entry.getValue()[1] > 0 && dir.startsWith(entry.getKey())) return true;
+        }
+        return false;
+    }
+
+    // guarded by this
+    private boolean isRegistered(Path dir) {
+        int[] count = users.get(dir);
+        return count != null && count[0] > 0 || isRecursive(dir);
+    }
+
+    private void register(Path dir) throws IOException {
+        if (keys.containsKey(dir)) return;
+        WatchKey key = dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        keys.put(dir, key);
+        if (log.isLoggable(Level.FINER))
+            log.finer("watching " + dir);
+    }
+
+    private void registerTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                recursive.add(dir);
+                register(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Tell `listener' about changes beneath `root', for as long as it
+     * is reachable or until it unsubscribes. The tree must also be
+     * registered.
+     */
+    void subscribe(File root, Listener listener) {
+        subscriptions.add(new Subscription(root.getAbsoluteFile().toPath(), listener));
+    }
+
+    void unsubscribe(Listener listener) {
+        for (Subscription subscription : subscriptions) {
+            Listener existing = subscription.listener.get();
+            if (existing == null || existing == listener)
+                subscriptions.remove(subscription);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                events.incrementAndGet();
+                if (event.kind() == OVERFLOW) {
+                    overflows.incrementAndGet();
+                    FileStats.clear();
+                    notify(dir);
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                if (log.isLoggable(Level.FINER))
+                    log.finer(event.kind() + " " + path);
+                FileStats.invalidate(path.toFile());
+                FileStats.invalidate(dir.toFile());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (created(dir, path)) {
+                        // its contents may have been created before we were watching
+                        FileStats.invalidateTree(path.toFile());
+                    }
+                }
+                notify(path);
+            }
+            // unless it was cancelled by unregister
+            if (!key.reset() && keys.remove(dir, key)) {
+                // deleted, or otherwise inaccessible
+                recursive.remove(dir);
+                FileStats.clear();
+                notify(dir);
+            }
+        }
+    }
+
+    // a directory was created in `parent', which may no longer be watched
+    private synchronized boolean created(Path parent, Path dir) {
+        if (!recursive.contains(parent)) return false;
+        try {
+            registerTree(dir);
+        } catch (IOException | ClosedWatchServiceException e) {
+            if (log.isLoggable(Level.FINE))
+                log.fine("cannot watch " + dir + ": " + e);
+        }
+        return true;
+    }
+
+    private void notify(Path path) {
+        for (Subscription subscription : subscriptions) {
+            Listener listener = subscription.listener.get();
+            if (listener == null) {
+                subscriptions.remove(subscription);
+            } else if (path.startsWith(subscription.root) || subscription.root.startsWith(path)) {
+                try {
+                    listener.changed(path);
+                } catch (RuntimeException e) {
+                    log.log(Level.WARNING, "while notifying " + listener + " of " + path, e);
+                }
+            }
+        }
+    }
+
+    long getEventCount() {
+        return events.get();
+    }
+
+    long getOverflowCount() {
+        return overflows.get();
+    }
+
+    int getWatchCount() {
+        return keys.size();
+    }
+
+    @Override
+    public String toString() {
+        return "FileWatcher(watching = " + keys.size() + ", events = " + events + ", overflows = " + overflows + ")";
+    }
+}
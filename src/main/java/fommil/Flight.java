@@ -0,0 +1,198 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Java Flight Recorder events, when `class-monkey.jfr` is set and the
+ * JVM has JFR (8u262 or later).
+ *
+ * The events are defined at runtime with jdk.jfr.EventFactory, so JFR
+ * isn't needed to build or to run. When disabled, begin returns null
+ * without allocating and callers skip commit:
+ *
+ *     Object event = Flight.begin(Flight.ARCHIVE_INDEX);
+ *     ...
+ *     if (event != null) Flight.commit(event, path, entries, cached);
+ *
+ * The values given to commit must match the fields of the type, in
+ * order. Each event is timed from begin to commit.
+ */
+final class Flight {
+    private static final Logger log = Logger.getLogger(Flight.class.getName());
+
+    private static final String CATEGORY = "class-monkey";
+
+    // jdk.jfr.EventFactory#newEvent and jdk.jfr.Event, with Object receivers
+    private static final MethodHandle newEvent, isEnabled, beginEvent, endEvent, shouldCommit, setField, commitEvent;
+    static {
+        MethodHandle[] handles = new MethodHandle[7];
+        if (ClassMonkeyOptions.getBoolean("jfr", false)) {
+            try {
+                Class<?> factory = Class.forName("jdk.jfr.EventFactory");
+                Class<?> event = Class.forName("jdk.jfr.Event");
+                MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+                MethodType test = MethodType.methodType(boolean.class, Object.class);
+                MethodType run = MethodType.methodType(void.class, Object.class);
+                handles[0] = lookup.findVirtual(factory, "newEvent", MethodType.methodType(event)).asType(MethodType.methodType(Object.class, Object.class));
+                handles[1] = lookup.findVirtual(event, "isEnabled", MethodType.methodType(boolean.class)).asType(test);
+                handles[2] = lookup.findVirtual(event, "begin", MethodType.methodType(void.class)).asType(run);
+                handles[3] = lookup.findVirtual(event, "end", MethodType.methodType(void.class)).asType(run);
+                handles[4] = lookup.findVirtual(event, "shouldCommit", MethodType.methodType(boolean.class)).asType(test);
+                handles[5] = lookup.findVirtual(event, "set", MethodType.methodType(void.class, int.class, Object.class)).asType(MethodType.methodType(void.class, Object.class, int.class, Object.class));
+                handles[6] = lookup.findVirtual(event, "commit", MethodType.methodType(void.class)).asType(run);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                log.warning("ignoring " + ClassMonkeyOptions.PREFIX + "jfr, Flight Recorder is not available (" + e + ")");
+                handles = new MethodHandle[7];
+            }
+        }
+        newEvent = handles[0];
+        isEnabled = handles[1];
+        beginEvent = handles[2];
+        endEvent = handles[3];
+        shouldCommit = handles[4];
+        setField = handles[5];
+        commitEvent = handles[6];
+    }
+
+    static final boolean ENABLED = newEvent != null;
+
+    static final Type ARCHIVE_INDEX = new Type(
+        "fommil.ArchiveIndex", "Archive Index", "An archive's central directory was indexed, or its index loaded from the index cache", true,
+        field(String.class, "path", "Path", null),
+        field(int.class, "entries", "Entries", null),
+        field(boolean.class, "cached", "From Index Cache", null)
+    );
+
+    static final Type ARCHIVE_STALE = new Type(
+        "fommil.ArchiveStale", "Archive Reindex", "A shared archive was indexed again, because it changed or was garbage collected", true,
+        field(String.class, "path", "Path", null),
+        field(String.class, "reason", "Reason", null)
+    );
+
+    static final Type RESOURCE_READ = new Type(
+        "fommil.ResourceRead", "Resource Read", "A resource was read from an archive, because it was not cached", false,
+        field(String.class, "archive", "Archive", null),
+        field(String.class, "name", "Name", null),
+        field(int.class, "bytesRead", "Bytes Read", "BYTES"),
+        field(int.class, "size", "Size", "BYTES"),
+        // classes are held deflated and inflated by the caller, so this is only config and re-encoding
+        timespan("inflateDuration", "Inflate Duration")
+    );
+
+    static final Type DIRECTORY_LOOKUP = new Type(
+        "fommil.DirectoryLookup", "Directory Lookup", "A resource was looked for in a classpath directory", false,
+        field(String.class, "directory", "Directory", null),
+        field(String.class, "name", "Name", null),
+        field(boolean.class, "found", "Found", null)
+    );
+
+    private Flight() { }
+
+    /** @return null unless the event is to be recorded. */
+    static Object begin(Type type) {
+        if (!ENABLED || type.factory == null) return null;
+        try {
+            Object event = (Object) newEvent.invokeExact(type.factory);
+            if (!(boolean) isEnabled.invokeExact(event)) return null;
+            beginEvent.invokeExact(event);
+            return event;
+        } catch (Throwable t) {
+            failed(t);
+            return null;
+        }
+    }
+
+    /** `event' must have come from begin, `values' are the fields in order. */
+    static void commit(Object event, Object... values) {
+        try {
+            endEvent.invokeExact(event);
+            if (!(boolean) shouldCommit.invokeExact(event)) return;
+            for (int i = 0; i < values.length; i++) {
+                setField.invokeExact(event, i, values[i]);
+            }
+            commitEvent.invokeExact(event);
+        } catch (Throwable t) {
+            failed(t);
+        }
+    }
+
+    private static void failed(Throwable t) {
+        if (log.isLoggable(Level.FINE))
+            log.log(Level.FINE, "unable to record a Flight Recorder event", t);
+    }
+
+    private static Field field(Class<?> type, String name, String label, String dataAmount) {
+        return new Field(type, name, label, dataAmount == null ? null : "jdk.jfr.DataAmount", dataAmount);
+    }
+
+    // in nanoseconds
+    private static Field timespan(String name, String label) {
+        return new Field(long.class, name, label, "jdk.jfr.Timespan", "NANOSECONDS");
+    }
+
+    private static final class Field {
+        final Class<?> type;
+        // `unit' is the value of the `units' annotation, e.g. jdk.jfr.DataAmount
+        final String name, label, units, unit;
+
+        Field(Class<?> type, String name, String label, String units, String unit) {
+            this.type = type;
+            this.name = name;
+            this.label = label;
+            this.units = units;
+            this.unit = unit;
+        }
+    }
+
+    /** An event type, inert unless ENABLED. */
+    static final class Type {
+        // a jdk.jfr.EventFactory
+        private final Object factory;
+
+        Type(String name, String label, String description, boolean stackTrace, Field... fields) {
+            this.factory = ENABLED ? create(name, label, description, stackTrace, fields) : null;
+        }
+
+        // everything by reflection, this is only done once per type
+        private static Object create(String name, String label, String description, boolean stackTrace, Field... fields) {
+            try {
+                Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+                Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+                Constructor<?> annotation = annotationElement.getConstructor(Class.class, Object.class);
+                Constructor<?> value = valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+                List<Object> annotations = new ArrayList<>();
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Name"), name));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), label));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Description"), description));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.Category"), new String[]{ CATEGORY }));
+                annotations.add(annotation.newInstance(Class.forName("jdk.jfr.StackTrace"), stackTrace));
+
+                List<Object> values = new ArrayList<>();
+                for (Field field : fields) {
+                    List<Object> fieldAnnotations = new ArrayList<>();
+                    fieldAnnotations.add(annotation.newInstance(Class.forName("jdk.jfr.Label"), field.label));
+                    if (field.units != null)
+                        fieldAnnotations.add(annotation.newInstance(Class.forName(field.units), field.unit));
+                    values.add(value.newInstance(field.type, field.name, fieldAnnotations));
+                }
+
+                Method create = Class.forName("jdk.jfr.EventFactory").getMethod("create", List.class, List.class);
+                return create.invoke(null, annotations, values);
+            } catch (ReflectiveOperationException | LinkageError e) {
+                log.warning("unable to define the Flight Recorder event " + name + " (" + e + ")");
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,353 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional persistent cache of ArchiveIndexes, so that JVMs that are
+ * started repeatedly over the same classpath (e.g. forked tests)
+ * don't have to read every central directory again.
+ *
+ * Enabled by setting `class-monkey.index.cache` to a directory, which
+ * may be shared by concurrent JVMs: files are written to a temporary
+ * name and atomically renamed. The directory must belong to the user,
+ * see privateDirectory.
+ *
+ * Each archive has one file, recording the canonical path, size, mtime
+ * and CentralDirectory#checksum of the archive that it was built from.
+ * A file that doesn't match all of them is stale, and one that fails
+ * its own checksums is corrupt: either way it is ignored and replaced.
+ *
+ * The header also holds a Hint (the packages and name hashes), which
+ * can be read on its own.
+ *
+ * Files are read onto the heap and copied into an ArchiveIndex, they
+ * are never memory in, so that they can always be replaced.
+ */
+final class IndexCache {
+    private static final Logger log = Logger.getLogger(IndexCache.class.getName());
+
+    private static final IndexCache shared = create(ClassMonkeyOptions.get("index.cache", null));
+
+    // "CMIX"
+    private static final int MAGIC = 0x434d4958;
+    private static final int VERSION = 3;
+
+    private final File dir;
+
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter stale = new Counter();
+    private final Counter corrupt = new Counter();
+
+    private IndexCache(File dir) {
+        this.dir = dir;
+    }
+
+    /** @return null if disabled, or the directory is unusable. */
+    static IndexCache create(String dir) {
+        if (dir == null || dir.isEmpty()) return null;
+        File file = privateDirectory(dir, "index cache");
+        return file == null ? null : new IndexCache(file);
+    }
+
+    /**
+     * The files in `dir' are trusted, so it must belong to this user:
+     * otherwise another user could plant files in a predictable place,
+     * e.g. a shared /tmp, before we first create it. It is created, if
+     * necessary, so that only this user can read it. Where the file
+     * system has POSIX permissions, an existing directory is refused if
+     * it belongs to another user or others can write to it.
+     *
+     * @return null, with a warning, if `dir' is unusable.
+     */
+    static File privateDirectory(String dir, String what) {
+        Path path = new File(dir).getAbsoluteFile().toPath();
+        boolean posix = path.getFileSystem().supportedFileAttributeViews().contains("posix");
+        try {
+            if (!Files.isDirectory(path)) {
+                if (posix) Files.createDirectories(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                else Files.createDirectories(path);
+            }
+            if (posix) {
+                PosixFileAttributes attrs = Files.readAttributes(path, PosixFileAttributes.class);
+                UserPrincipal user = path.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+                if (!attrs.owner().equals(user)) {
+                    log.warning("ignoring " + what + ", " + path + " belongs to " + attrs.owner());
+                    return null;
+                }
+                Set<PosixFilePermission> permissions = attrs.permissions();
+                if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                    log.warning("ignoring " + what + ", " + path + " can be written by other users");
+                    return null;
+                }
+            }
+            return path.toFile();
+        } catch (IOException | UnsupportedOperationException e) {
+            log.warning("ignoring " + what + ", cannot create " + path + " (" + e + ")");
+            return null;
+        }
+    }
+
+    /** @return the JVM-wide cache, or null if disabled. */
+    static IndexCache shared() {
+        return shared;
+    }
+
+    /**
+     * What can be known about an archive without its index: enough to
+     * route lookups to it, see ArchiveResourceProvider.
+     */
+    static final class Hint {
+        final Set<String> packages;
+        // of every name, as ArchiveIndex#hash
+        final int[] hashes;
+
+        Hint(Set<String> packages, int[] hashes) {
+            this.packages = packages;
+            this.hashes = hashes;
+        }
+    }
+
+    /** @return the cached hint for the archive, or null if there isn't a good one. */
+    Hint loadHint(String path, long length, long lastModified, long checksum) {
+        File cached = fileFor(path);
+        try {
+            ByteBuffer in = read(cached);
+            if (!readHeader(in, cached, path, length, lastModified, checksum)) return null;
+            Hint hint = readHint(in);
+            hits.increment();
+            return hint;
+        } catch (NoSuchFileException e) {
+            misses.increment();
+            return null;
+        } catch (IOException | RuntimeException e) {
+            corrupt.increment();
+            if (log.isLoggable(Level.FINE))
+                log.fine("ignoring " + cached + " for " + path + ": " + e);
+            return null;
+        }
+    }
+
+    /** @return the cached index of the archive, or null if there isn't a good one. */
+    ArchiveIndex load(String path, long length, long lastModified, long checksum) {
+        File cached = fileFor(path);
+        try {
+            ByteBuffer in = read(cached);
+            if (!readHeader(in, cached, path, length, lastModified, checksum)) return null;
+            int headerEnd = in.getInt(8);
+            int end = in.capacity() - 8;
+            in.limit(in.capacity());
+            if (headerEnd + 8 > end || checksum(in, headerEnd + 8, end) != in.getLong(end))
+                throw new IOException("bad checksum");
+            in.limit(end);
+            in.position(headerEnd + 8);
+            ArchiveIndex index = ArchiveIndex.readFrom(in);
+            if (in.hasRemaining()) throw new IOException("trailing data");
+            hits.increment();
+            return index;
+        } catch (NoSuchFileException e) {
+            misses.increment();
+            return null;
+        } catch (IOException | RuntimeException e) {
+            corrupt.increment();
+            if (log.isLoggable(Level.FINE))
+                log.fine("ignoring " + cached + " for " + path + ": " + e);
+            return null;
+        }
+    }
+
+    // read onto the heap rather than mapped: a mapping outlives the
+    // channel until the next GC, and would pin the file on Windows so
+    // that `write' couldn't replace it. Indexes are small.
+    private static ByteBuffer read(File cached) throws IOException {
+        try (FileChannel channel = FileChannel.open(cached.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 32 || size > Integer.MAX_VALUE) throw new IOException("bad size " + size);
+            ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) throw new IOException("truncated at " + buffer.position());
+            }
+            buffer.clear();
+            return buffer;
+        }
+    }
+
+    /**
+     * Checks the header, which has its own checksum so that the hint
+     * can be read without reading the index.
+     *
+     * @return false if stale, otherwise positioned at the hint.
+     */
+    private boolean readHeader(ByteBuffer in, File cached, String path, long length, long lastModified, long checksum) throws IOException {
+        if (in.getInt(0) != MAGIC || in.getInt(4) != VERSION) throw new IOException("bad header");
+        int headerEnd = in.getInt(8);
+        if (headerEnd < 12 || headerEnd + 8 > in.capacity() || checksum(in, 0, headerEnd) != in.getLong(headerEnd))
+            throw new IOException("bad header checksum");
+        in.limit(headerEnd);
+        in.position(12);
+        byte[] recorded = new byte[in.getInt()];
+        in.get(recorded);
+        if (!Arrays.equals(recorded, path.getBytes(StandardCharsets.UTF_8))
+            || in.getLong() != length || in.getLong() != lastModified || in.getLong() != checksum) {
+            stale.increment();
+            if (log.isLoggable(Level.FINE))
+                log.fine(cached + " is stale for " + path);
+            return false;
+        }
+        return true;
+    }
+
+    private static Hint readHint(ByteBuffer in) throws IOException {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining()) throw new IOException("bad packages");
+        Set<String> packages = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[in.getInt()];
+            in.get(name);
+            packages.add(new String(name, StandardCharsets.UTF_8));
+        }
+        int size = in.getInt();
+        if (size < 0 || 4L * size != in.remaining()) throw new IOException("bad hashes");
+        int[] hashes = new int[size];
+        in.asIntBuffer().get(hashes);
+        return new Hint(Collections.unmodifiableSet(packages), hashes);
+    }
+
+    /** Best effort, failures are logged and ignored. */
+    void store(String path, long length, long lastModified, long checksum, ArchiveIndex index, Set<String> packages) {
+        byte[] encoded = path.getBytes(StandardCharsets.UTF_8);
+        List<byte[]> encodedPackages = new ArrayList<>(packages.size());
+        long total = 12L + 4 + encoded.length + 24 + 4 + 4 + 4L * index.size() + 8 + index.serializedSize() + 8;
+        for (String pkg : packages) {
+            byte[] bytes = pkg.getBytes(StandardCharsets.UTF_8);
+            encodedPackages.add(bytes);
+            total += 4 + bytes.length;
+        }
+        if (total > Integer.MAX_VALUE) return;
+        ByteBuffer buffer = ByteBuffer.allocate((int) total).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        // header end, filled in below
+        buffer.putInt(0);
+        buffer.putInt(encoded.length);
+        buffer.put(encoded);
+        buffer.putLong(length);
+        buffer.putLong(lastModified);
+        buffer.putLong(checksum);
+        buffer.putInt(encodedPackages.size());
+        for (byte[] bytes : encodedPackages) {
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+        buffer.putInt(index.size());
+        for (int i = 0; i < index.size(); i++) {
+            buffer.putInt(index.hash(i));
+        }
+        int headerEnd = buffer.position();
+        buffer.putInt(8, headerEnd);
+        buffer.putLong(checksum(buffer, 0, headerEnd));
+        index.writeTo(buffer);
+        buffer.putLong(checksum(buffer, headerEnd + 8, buffer.position()));
+        buffer.flip();
+
+        File cached = fileFor(path);
+        try {
+            write(dir, cached, buffer);
+            if (log.isLoggable(Level.FINER))
+                log.finer("stored " + cached + " for " + path);
+        } catch (IOException e) {
+            // e.g. read-only, or being read on Windows
+            if (log.isLoggable(Level.FINE))
+                log.fine("could not store " + cached + " for " + path + ": " + e);
+        }
+    }
+
+    /**
+     * Replace `target' with the contents of `buffer', via a temporary
+     * file in `dir' so that concurrent readers never see a partial file.
+     */
+    static void write(File dir, File target, ByteBuffer buffer) throws IOException {
+        File tmp = File.createTempFile(target.getName(), ".tmp", dir);
+        try {
+            try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tmp = null;
+        } finally {
+            if (tmp != null && !tmp.delete() && log.isLoggable(Level.FINE))
+                log.fine("could not delete " + tmp);
+        }
+    }
+
+    private File fileFor(String path) {
+        String name = new File(path).getName().replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.length() > 64) name = name.substring(0, 64);
+        return new File(dir, name + "-" + Integer.toHexString(path.hashCode()) + ".idx");
+    }
+
+    // FNV-1a style over 8 bytes at a time, CRC32 can't read a ByteBuffer in Java 7
+    static long checksum(ByteBuffer buffer, int from, int end) {
+        long hash = 0xcbf29ce484222325L;
+        int i = from;
+        for (; i + 8 <= end; i += 8) {
+            hash = (hash ^ buffer.getLong(i)) * 0x100000001b3L;
+        }
+        for (; i < end; i++) {
+            hash = (hash ^ buffer.get(i)) * 0x100000001b3L;
+        }
+        return hash ^ (hash >>> 29);
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getStaleCount() {
+        return stale.sum();
+    }
+
+    long getCorruptCount() {
+        return corrupt.sum();
+    }
+
+    void resetCounts() {
+        hits.reset();
+        misses.reset();
+        stale.reset();
+        corrupt.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "IndexCache(" + dir + ", hits = " + hits + ", misses = " + misses + ", stale = " + stale + ", corrupt = " + corrupt + ")";
+    }
+}
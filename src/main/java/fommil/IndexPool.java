@@ -0,0 +1,114 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * JVM-wide pool of daemon threads for indexing archives in parallel
+ * when a classpath is created.
+ *
+ * `class-monkey.index.threads` bounds the parallelism (default: the
+ * number of processors), 1 disables it. The pool is only started when
+ * there is more than one task.
+ */
+final class IndexPool {
+    private static final int THREADS = ClassMonkeyOptions.getInt("index.threads", Runtime.getRuntime().availableProcessors());
+    private static volatile ForkJoinPool pool;
+
+    private IndexPool() { }
+
+    /**
+     * Run all the tasks, on the calling thread if parallelism is
+     * disabled, and wait for them to complete. Failures are held by the
+     * Futures, see join.
+     */
+    static <T> List<Future<T>> invokeAll(List<Callable<T>> tasks) {
+        if (THREADS > 1 && tasks.size() > 1 && !ForkJoinTask.inForkJoinPool())
+            return pool().invokeAll(tasks);
+
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            FutureTask<T> future = new FutureTask<>(task);
+            future.run();
+            futures.add(future);
+        }
+        return futures;
+    }
+
+    /** The result of a completed task, rethrowing unchecked failures. */
+    static <T> T join(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * The result of a completed task, or null if it failed, e.g. to
+     * clean up after an earlier failure was thrown by join.
+     */
+    static <T> T resultOrNull(Future<T> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    // a ForkJoinTask checks even when it is complete
+                    interrupted = true;
+                } catch (ExecutionException | CancellationException e) {
+                    return null;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static ForkJoinPool pool() {
+        if (pool == null) {
+            synchronized (IndexPool.class) {
+                if (pool == null) {
+                    pool = new ForkJoinPool(THREADS, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                        @Override
+                        public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                            // workers are started by whichever thread submits
+                            // work, they mustn't pin its classloader, see
+                            // ClassMonkeyUtils.daemon
+                            return AccessController.doPrivileged(new PrivilegedAction<ForkJoinWorkerThread>() {
+                                @Override
+                                public ForkJoinWorkerThread run() {
+                                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                                    thread.setName("class-monkey-index-" + thread.getPoolIndex());
+                                    thread.setDaemon(true);
+                                    thread.setContextClassLoader(null);
+                                    return thread;
+                                }
+                            });
+                        }
+                    }, null, false);
+                }
+            }
+        }
+        return pool;
+    }
+}
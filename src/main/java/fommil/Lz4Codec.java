@@ -0,0 +1,165 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A pure Java codec for the LZ4 block format (no frame, no checksum)
+ * https://github.com/lz4/lz4/blob/dev/doc/lz4_Block_format.md
+ *
+ * The compressor is the simple greedy one: a single hash table of the
+ * most recent position of each 4 byte sequence, which skips ahead
+ * faster the longer it goes without a match. Ratios are worse than
+ * deflate, but decoding is little more than System.arraycopy.
+ */
+final class Lz4Codec implements ResourceCodec {
+    private static final int MIN_MATCH = 4;
+    // the last match must start this far from the end
+    private static final int MF_LIMIT = 12;
+    // and the last bytes are always literals
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_BITS = 12;
+
+    private static final ThreadLocal<int[]> tables = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_BITS];
+        }
+    };
+
+    @Override
+    public byte[] encode(byte[] src, int offset, int length) {
+        byte[] dst = new byte[length + length / 255 + 16];
+        int end = offset + length;
+        int anchor = offset;
+        int op = 0;
+
+        if (length >= MF_LIMIT + 1) {
+            int[] table = tables.get();
+            // positions are stored relative to `offset', plus one, so zero is empty
+            Arrays.fill(table, 0);
+            int mfLimit = end - MF_LIMIT;
+            int matchLimit = end - LAST_LITERALS;
+            int ip = offset;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h] - 1 + offset;
+                table[h] = ip - offset + 1;
+                if (ref < offset || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                    ip += 1 + ((ip - anchor) >>> 6);
+                    continue;
+                }
+                // extend backwards over literals that also match
+                while (ip > anchor && ref > offset && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) matchLength++;
+
+                op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        // the last literals
+        int literals = end - anchor;
+        op = writeLength(dst, op, literals, 0);
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        return Arrays.copyOf(dst, op);
+    }
+
+    private static int writeSequence(byte[] src, int anchor, int literals, byte[] dst, int op, int distance, int matchLength) {
+        op = writeLength(dst, op, literals, Math.min(matchLength - MIN_MATCH, 15));
+        System.arraycopy(src, anchor, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) distance;
+        dst[op++] = (byte) (distance >>> 8);
+        if (matchLength - MIN_MATCH >= 15) op = writeExtra(dst, op, matchLength - MIN_MATCH - 15);
+        return op;
+    }
+
+    // the token (with the low nibble given) and any extra literal length bytes
+    private static int writeLength(byte[] dst, int op, int literals, int lowNibble) {
+        dst[op++] = (byte) ((Math.min(literals, 15) << 4) | lowNibble);
+        if (literals >= 15) op = writeExtra(dst, op, literals - 15);
+        return op;
+    }
+
+    private static int writeExtra(byte[] dst, int op, int remaining) {
+        while (remaining >= 255) {
+            dst[op++] = (byte) 255;
+            remaining -= 255;
+        }
+        dst[op++] = (byte) remaining;
+        return op;
+    }
+
+    @Override
+    public byte[] decode(byte[] src, int offset, int length, int size) throws IOException {
+        byte[] dst = new byte[size];
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        try {
+            while (true) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) break;
+
+                int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                if (distance == 0 || distance > op) throw new IOException("bad LZ4 offset " + distance + " at " + op);
+                int matchLength = token & 0x0F;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - distance;
+                if (distance >= matchLength) {
+                    System.arraycopy(dst, ref, dst, op, matchLength);
+                } else {
+                    // overlapping, i.e. a repeating pattern
+                    for (int i = 0; i < matchLength; i++) dst[op + i] = dst[ref + i];
+                }
+                op += matchLength;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("bad LZ4 data", e);
+        }
+        if (op != size || ip != end) throw new IOException("decoded " + op + " bytes but expected " + size);
+        return dst;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | b[i + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    @Override
+    public String toString() {
+        return "lz4";
+    }
+}
@@ -0,0 +1,200 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Warms the resource caches of a new classpath in the background, so
+ * that the first burst of class loading doesn't have to read from
+ * disk on the application's threads.
+ *
+ * Patterns are either package prefixes (e.g. `scala.collection' or
+ * `akka/actor', which include subpackages) or globs over resource
+ * names, where `*' doesn't cross a `/' but `**' does (e.g.
+ * `META-INF/services/*' or `com/acme/**.class').
+ *
+ * `class-monkey.prefetch' is a `;' separated list of patterns that
+ * every new classpath prefetches, see also URLClassPath#prefetch.
+ * Work is done by a single, minimum priority, daemon thread and what
+ * is prefetched is still bounded by the resource cache budget.
+ */
+final class Prefetcher {
+    private static final Logger log = Logger.getLogger(Prefetcher.class.getName());
+
+    private static final List<String> DEFAULTS = split(ClassMonkeyOptions.get("prefetch", ""));
+    private static volatile ExecutorService executor;
+
+    private static final Counter prefetched = new Counter();
+
+    private Prefetcher() { }
+
+    /** The patterns that every new classpath should prefetch. */
+    static List<String> defaults() {
+        return DEFAULTS;
+    }
+
+    static List<String> split(String patterns) {
+        List<String> split = new ArrayList<>();
+        for (String pattern : patterns.split(";")) {
+            if (!pattern.trim().isEmpty()) split.add(pattern.trim());
+        }
+        return Collections.unmodifiableList(split);
+    }
+
+    /**
+     * Prefetch the resources of `archives' that match any of the
+     * `patterns', in classpath order, until `owner' is closed.
+     */
+    static Future<?> prefetch(final URLClassPath owner, final List<URLClassPath.ArchiveResourceProvider> archives, List<String> patterns) {
+        final Pattern pattern = compile(patterns);
+        return executor().submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                int count = 0;
+                for (URLClassPath.ArchiveResourceProvider archive : archives) {
+                    if (owner.isClosed()) break;
+                    try {
+                        List<String> matches = new ArrayList<>();
+                        for (String name : archive.names()) {
+                            if (pattern.matcher(name).matches()) matches.add(name);
+                        }
+                        count += fetch(archive, matches);
+                    } catch (IOException | RuntimeException e) {
+                        if (log.isLoggable(Level.FINE))
+                            log.fine("prefetching " + archive + " failed: " + e);
+                    }
+                }
+                if (log.isLoggable(Level.FINE))
+                    log.fine("prefetched " + count + " resources from " + archives.size() + " archives in " + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+        });
+    }
+
+    /**
+     * Prefetch the names that `traces' recorded for `classpath' from the
+     * archives of `owner' that will answer for them, an archive at a
+     * time in the order that they were first needed, until `owner' is
+     * closed.
+     */
+    static Future<?> replay(final URLClassPath owner, final ClassTrace traces, final String classpath) {
+        return executor().submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                List<String> names = traces.load(classpath);
+                if (names == null) return;
+                Map<URLClassPath.ArchiveResourceProvider, List<String>> grouped = new LinkedHashMap<>();
+                for (String name : names) {
+                    if (owner.isClosed()) return;
+                    try {
+                        URLClassPath.ArchiveResourceProvider archive = owner.archiveOf(name);
+                        if (archive == null) continue;
+                        List<String> group = grouped.get(archive);
+                        if (group == null) grouped.put(archive, group = new ArrayList<>());
+                        group.add(name);
+                    } catch (IOException | RuntimeException e) {
+                        if (log.isLoggable(Level.FINE))
+                            log.fine("replaying " + name + " failed: " + e);
+                    }
+                }
+                int count = 0;
+                for (Map.Entry<URLClassPath.ArchiveResourceProvider, List<String>> entry : grouped.entrySet()) {
+                    if (owner.isClosed()) break;
+                    try {
+                        count += fetch(entry.getKey(), entry.getValue());
+                    } catch (IOException | RuntimeException e) {
+                        if (log.isLoggable(Level.FINE))
+                            log.fine("replaying " + entry.getKey() + " failed: " + e);
+                    }
+                }
+                if (log.isLoggable(Level.FINE))
+                    log.fine("replayed " + count + " of " + names.size() + " resources from " + grouped.size() + " archives in " + (System.nanoTime() - start) / 1000000 + "ms");
+            }
+        });
+    }
+
+    private static int fetch(URLClassPath.ArchiveResourceProvider archive, List<String> names) throws IOException {
+        int count = archive.prefetch(names);
+        prefetched.add(count);
+        return count;
+    }
+
+    /** A single regex that matches any of the patterns. */
+    static Pattern compile(List<String> patterns) {
+        StringBuilder regex = new StringBuilder();
+        for (String pattern : patterns) {
+            String glob = URLClassPath.stripLeadingSlashes(pattern);
+            if (glob.indexOf('*') < 0 && glob.indexOf('?') < 0) {
+                // a package prefix
+                if (glob.indexOf('/') < 0) glob = glob.replace('.', '/');
+                if (!glob.endsWith("/")) glob += "/";
+                glob += "**";
+            }
+            if (regex.length() > 0) regex.append('|');
+            int literal = 0;
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c != '*' && c != '?') continue;
+                if (literal < i) regex.append(Pattern.quote(glob.substring(literal, i)));
+                if (c == '?') {
+                    regex.append("[^/]");
+                } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    regex.append(".*");
+                    i++;
+                } else {
+                    regex.append("[^/]*");
+                }
+                literal = i + 1;
+            }
+            if (literal < glob.length()) regex.append(Pattern.quote(glob.substring(literal)));
+        }
+        // matches nothing if there are no patterns
+        return Pattern.compile(regex.length() == 0 ? "(?!)" : regex.toString());
+    }
+
+    private static ExecutorService executor() {
+        if (executor == null) {
+            synchronized (Prefetcher.class) {
+                if (executor == null) {
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = ClassMonkeyUtils.daemon(r, "class-monkey-prefetch");
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+                    // the thread isn't needed between bursts of classloader creation
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /** Resources that have been read into the cache in the background. */
+    static long getPrefetchedCount() {
+        return prefetched.sum();
+    }
+
+    static void resetCounts() {
+        prefetched.reset();
+    }
+}
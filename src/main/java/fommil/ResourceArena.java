@@ -0,0 +1,178 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Optional off-heap storage for the bytes of cached resources, so
+ * that they don't add to the old generation of long-lived JVMs.
+ *
+ * Resources are bump-allocated from direct ByteBuffer slabs, and each
+ * slab counts the bytes that are still allocated from it. The
+ * ResourceCache frees a resource's Allocation when it drops the
+ * resource, and a slab whose bytes have all been freed is retired: it
+ * is taken off the budget and left to the GC.
+ *
+ * Slabs are never reused, so a reader that still holds a dropped
+ * resource never sees memory that has been handed out again. A retired
+ * slab is released when the GC finds it unreachable, which is usually
+ * straight away, so direct memory can briefly exceed the budget.
+ *
+ * Enabled by setting `class-monkey.offheap.budget` to the maximum
+ * number of bytes to reserve, `class-monkey.offheap.slab` is the slab
+ * size (default 1m). When the budget is exhausted, or a resource is
+ * larger than a slab, callers must fall back to the heap.
+ */
+final class ResourceArena {
+    private static final Logger log = Logger.getLogger(ResourceArena.class.getName());
+
+    private static final ResourceArena shared = create(
+        ClassMonkeyOptions.getBytes("offheap.budget", 0),
+        ClassMonkeyOptions.getBytes("offheap.slab", 1L << 20)
+    );
+
+    private final int slabSize;
+    private final long budget;
+
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+    private final AtomicLong retired = new AtomicLong();
+
+    // guarded by this
+    private Slab current;
+
+    private ResourceArena(long budget, int slabSize) {
+        this.budget = budget;
+        this.slabSize = slabSize;
+    }
+
+    /** @return null if disabled. */
+    static ResourceArena create(long budget, long slabSize) {
+        if (budget <= 0) return null;
+        if (slabSize <= 0 || slabSize > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("bad slab size " + slabSize);
+        return new ResourceArena(budget, (int) slabSize);
+    }
+
+    /** @return the JVM-wide arena, or null if off-heap storage is disabled. */
+    static ResourceArena shared() {
+        return shared;
+    }
+
+    /**
+     * Bytes in a slab, to be freed exactly once by their owner. The
+     * buffer can still be read after that.
+     */
+    static final class Allocation {
+        final ByteBuffer buffer;
+        private final Slab slab;
+
+        private Allocation(ByteBuffer buffer, Slab slab) {
+            this.buffer = buffer;
+            this.slab = slab;
+        }
+
+        void free() {
+            slab.arena.free(slab, buffer.capacity());
+        }
+    }
+
+    private static final class Slab {
+        final ResourceArena arena;
+        final ByteBuffer buffer;
+        // guarded by the arena
+        int live;
+        boolean retired;
+
+        Slab(ResourceArena arena, int size) {
+            this.arena = arena;
+            this.buffer = ByteBuffer.allocateDirect(size);
+        }
+    }
+
+    /**
+     * @return exactly `size` bytes, or null if the caller should use
+     * the heap instead.
+     */
+    synchronized Allocation allocate(int size) {
+        if (size > slabSize) {
+            fallbacks.incrementAndGet();
+            return null;
+        }
+        if (current == null || current.buffer.remaining() < size) {
+            if (current != null && current.live == 0) retire(current);
+            current = null;
+            if (reserved.get() + slabSize > budget) {
+                fallbacks.incrementAndGet();
+                return null;
+            }
+            current = new Slab(this, slabSize);
+            reserved.addAndGet(slabSize);
+            if (log.isLoggable(Level.FINER))
+                log.finer("allocated slab, reserved = " + reserved);
+        }
+        ByteBuffer slab = current.buffer;
+        int start = slab.position();
+        slab.limit(start + size);
+        ByteBuffer slice = slab.slice();
+        slab.limit(slab.capacity());
+        slab.position(start + size);
+        current.live += size;
+        allocated.addAndGet(size);
+        return new Allocation(slice, current);
+    }
+
+    /** Copy `length' bytes into the arena, or return null if it is full. */
+    Allocation copyOf(byte[] bytes, int offset, int length) {
+        Allocation allocation = allocate(length);
+        if (allocation == null) return null;
+        allocation.buffer.put(bytes, offset, length);
+        allocation.buffer.flip();
+        return allocation;
+    }
+
+    // the current slab is kept, the rest of it has not been handed out yet
+    private synchronized void free(Slab slab, int size) {
+        slab.live -= size;
+        if (slab.live == 0 && slab != current) retire(slab);
+    }
+
+    private void retire(Slab slab) {
+        if (slab.retired) return;
+        slab.retired = true;
+        reserved.addAndGet(-slabSize);
+        retired.incrementAndGet();
+        if (log.isLoggable(Level.FINER))
+            log.finer("retired slab, reserved = " + reserved);
+    }
+
+    /** Bytes of direct memory held by slabs that are in use. */
+    long getReserved() {
+        return reserved.get();
+    }
+
+    /** Total bytes ever handed out. */
+    long getAllocated() {
+        return allocated.get();
+    }
+
+    /** Allocations that had to use the heap. */
+    long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    /** Slabs that were taken off the budget because everything in them was freed. */
+    long getRetired() {
+        return retired.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ResourceArena(reserved = " + reserved + " of " + budget + ", allocated = " + allocated + ", fallbacks = " + fallbacks + ", retired = " + retired + ")";
+    }
+}
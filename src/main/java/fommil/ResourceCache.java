@@ -0,0 +1,485 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JVM-wide cache of SimpleResources, bounded by the total compressed
+ * size of its contents (`class-monkey.cache.budget`, default 64m).
+ *
+ * Each archive owns a Segment (a plain ConcurrentHashMap) but
+ * eviction is decided globally by a W-TinyLFU policy: new entries go
+ * into a small LRU window and, when it overflows, compete for a place
+ * in the main segmented LRU (probation / protected) against its
+ * victim, by their estimated access frequency. This keeps one-off
+ * reads (most class files) from flushing resources that are read
+ * repeatedly.
+ *
+ * Reads are lock-free: every read (hit or miss) is recorded in a lossy
+ * ring buffer that is replayed against the policy and the frequency
+ * sketch by whichever thread next gets the lock, without ever waiting
+ * for it. Writes take the lock, and replay the buffer before deciding
+ * whether to admit.
+ *
+ * What is admitted, and in what form, is decided per resource by the
+ * CachePolicy, using the same frequency estimates. A resource that the
+ * policy would no longer admit (e.g. a prefetched class) is removed
+ * when it is read. Occupancy is reported per CachePolicy.Category.
+ *
+ * Admitted resources are held off-heap if there is a ResourceArena,
+ * and released back to it when they are evicted or removed.
+ *
+ * See "TinyLFU: A Highly Efficient Cache Admission Policy" by
+ * Einziger, Friedman and Manes.
+ */
+final class ResourceCache {
+    private static final Logger log = Logger.getLogger(ResourceCache.class.getName());
+
+    private static final ResourceCache shared = new ResourceCache(
+        ClassMonkeyOptions.getBytes("cache.budget", 64L << 20)
+    );
+
+    private static final int WINDOW = 0, PROBATION = 1, PROTECTED = 2, DEAD = 3;
+    private static final int READ_BUFFER = 128;
+    private static final int DRAIN_EVERY = 32;
+    private static final long RECORDED = 1L << 32;
+
+    private final long budget;
+    private final ResourceArena arena;
+    private final long windowBudget;
+    private final long protectedBudget;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    // the hash of each read name, with RECORDED set, and its Node if it was a hit
+    private final AtomicLongArray readHashes = new AtomicLongArray(READ_BUFFER);
+    private final AtomicReferenceArray<Node> reads = new AtomicReferenceArray<>(READ_BUFFER);
+    private final AtomicLong readCount = new AtomicLong();
+    // written with the lock held
+    private final FrequencySketch sketch = new FrequencySketch();
+    // read for the last time, still to be removed from the policy
+    private final ConcurrentLinkedQueue<Node> consumed = new ConcurrentLinkedQueue<>();
+
+    // guarded by lock
+    private final Node window = new Node(), probation = new Node(), protect = new Node();
+    private long windowWeight, probationWeight, protectedWeight;
+
+    private final Counter hits = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter evictions = new Counter();
+    private final AtomicLong weight = new AtomicLong();
+    // by CachePolicy.Category
+    private final AtomicLongArray categoryWeights = new AtomicLongArray(CachePolicy.Category.values().length);
+    private final AtomicLongArray categoryCounts = new AtomicLongArray(CachePolicy.Category.values().length);
+
+    ResourceCache(long budget) {
+        this(budget, ResourceArena.shared());
+    }
+
+    // `arena' may be null
+    ResourceCache(long budget, ResourceArena arena) {
+        this.budget = budget;
+        this.arena = arena;
+        this.windowBudget = Math.max(1, budget / 100);
+        this.protectedBudget = (budget - windowBudget) * 8 / 10;
+    }
+
+    static ResourceCache shared() {
+        return shared;
+    }
+
+    Segment segment() {
+        return new Segment();
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /** The weights are not counts, so are not reset. */
+    void resetCounts() {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /** The total compressed size of the cached resources. */
+    long getWeight() {
+        return weight.get();
+    }
+
+    /** The retained size of the cached resources of a category. */
+    long getWeight(CachePolicy.Category category) {
+        return categoryWeights.get(category.ordinal());
+    }
+
+    long getCount(CachePolicy.Category category) {
+        return categoryCounts.get(category.ordinal());
+    }
+
+    long getBudget() {
+        return budget;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder categories = new StringBuilder();
+        for (CachePolicy.Category category : CachePolicy.Category.values()) {
+            categories.append(", ").append(category.name().toLowerCase()).append(" = ")
+                .append(getCount(category)).append(" (").append(getWeight(category)).append(" bytes)");
+        }
+        return "ResourceCache(" + weight + " of " + budget + " bytes, hits = " + hits + ", misses = " + misses + ", evictions = " + evictions + categories + ")";
+    }
+
+    /** The cached resources of a single owner, e.g. an archive. */
+    final class Segment {
+        private final ConcurrentMap<String, Node> entries = new ConcurrentHashMap<>();
+        // written with the lock held
+        private volatile long retained;
+
+        SimpleResource get(String name) {
+            Node node = entries.get(name);
+            int hash = name.hashCode();
+            if (node == null) {
+                misses.increment();
+                afterRead(hash, null);
+                return null;
+            }
+            hits.increment();
+            // this read is not in the sketch yet
+            if (CachePolicy.decide(node.category, node.value.getSize(), sketch.frequency(hash) + 1) == CachePolicy.Decision.NEVER) {
+                if (entries.remove(name, node)) consumed.add(node);
+                afterRead(hash, null);
+            } else {
+                afterRead(hash, node);
+            }
+            return node.value;
+        }
+
+        /**
+         * @param prefetched if it is being read ahead of being asked for,
+         * in which case it is admitted regardless of how often it has
+         * been read.
+         * @return the existing resource if there was one, otherwise
+         * `resource' or its inflated equivalent (either of which may or
+         * may not have been retained).
+         */
+        SimpleResource putIfAbsent(String name, SimpleResource resource, boolean prefetched) throws IOException {
+            CachePolicy.Category category = CachePolicy.categorize(name);
+            int reads = prefetched ? Integer.MAX_VALUE : frequency(name.hashCode());
+            switch (CachePolicy.decide(category, resource.getSize(), reads)) {
+            case NEVER:
+                return resource;
+            case INFLATED:
+                resource = resource.inflate();
+                break;
+            default:
+                resource = resource.recode(ResourceCodecs.configured());
+            }
+            long size = resource.getRetainedSize();
+            if (size > budget) return resource;
+            resource = resource.offHeap(arena);
+            Node node = new Node(this, name, category, resource, (int) size);
+            Node existing = entries.putIfAbsent(name, node);
+            if (existing != null) {
+                resource.release();
+                return existing.value;
+            }
+            lock.lock();
+            try {
+                // may have been removed by a concurrent clear() or get()
+                if (entries.get(name) != node) {
+                    resource.release();
+                } else {
+                    node.queue = WINDOW;
+                    link(window, node);
+                    windowWeight += node.weight;
+                    retained += node.weight;
+                    weight.addAndGet(node.weight);
+                    categoryWeights.addAndGet(category.ordinal(), node.weight);
+                    categoryCounts.incrementAndGet(category.ordinal());
+                    evict();
+                }
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+            return resource;
+        }
+
+        /** Remove all of this segment's resources. */
+        void clear() {
+            lock.lock();
+            try {
+                drainReads();
+                for (Node node : entries.values()) {
+                    if (entries.remove(node.key, node)) remove(node);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Doesn't count as an access. */
+        boolean contains(String name) {
+            return entries.containsKey(name);
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        /** The retained size of this segment's resources. */
+        long getWeight() {
+            return retained;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // policy, everything below must be called with the lock held unless stated
+
+    // lock-free, `node' is null for a miss
+    private void afterRead(int hash, Node node) {
+        long count = readCount.getAndIncrement();
+        int slot = (int) (count % READ_BUFFER);
+        reads.lazySet(slot, node);
+        readHashes.lazySet(slot, (hash & 0xffffffffL) | RECORDED);
+        if (count % DRAIN_EVERY == DRAIN_EVERY - 1 && lock.tryLock()) {
+            try {
+                drainReads();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void drainReads() {
+        Node done;
+        while ((done = consumed.poll()) != null) {
+            remove(done);
+        }
+        for (int i = 0; i < READ_BUFFER; i++) {
+            long hash = readHashes.getAndSet(i, 0);
+            if (hash != 0) sketch.increment((int) hash);
+            Node node = reads.getAndSet(i, null);
+            if (node != null) onAccess(node);
+        }
+    }
+
+    // takes the lock, so as to include every read so far
+    private int frequency(int hash) {
+        lock.lock();
+        try {
+            drainReads();
+            return sketch.frequency(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onAccess(Node node) {
+        switch (node.queue) {
+        case WINDOW:
+            unlink(node);
+            link(window, node);
+            break;
+        case PROBATION:
+            unlink(node);
+            probationWeight -= node.weight;
+            node.queue = PROTECTED;
+            link(protect, node);
+            protectedWeight += node.weight;
+            // demote the least recently used protected entries
+            while (protectedWeight > protectedBudget && protect.next != node) {
+                Node demoted = protect.next;
+                unlink(demoted);
+                protectedWeight -= demoted.weight;
+                demoted.queue = PROBATION;
+                link(probation, demoted);
+                probationWeight += demoted.weight;
+            }
+            break;
+        case PROTECTED:
+            unlink(node);
+            link(protect, node);
+            break;
+        default:
+            // evicted since it was read
+        }
+    }
+
+    private void evict() {
+        // the window overflows into probation, where candidates compete
+        while (windowWeight > windowBudget && window.next != window) {
+            Node candidate = window.next;
+            unlink(candidate);
+            windowWeight -= candidate.weight;
+            candidate.queue = PROBATION;
+            link(probation, candidate);
+            probationWeight += candidate.weight;
+        }
+
+        while (windowWeight + probationWeight + protectedWeight > budget) {
+            Node victim = probation.next;
+            Node candidate = probation.prev;
+            if (victim == probation) {
+                // everything is protected, or in the window
+                victim = protect.next != protect ? protect.next : window.next;
+                evict(victim);
+            } else if (victim == candidate) {
+                evict(victim);
+            } else if (sketch.frequency(candidate.key.hashCode()) > sketch.frequency(victim.key.hashCode())) {
+                evict(victim);
+            } else {
+                evict(candidate);
+            }
+        }
+    }
+
+    private void evict(Node node) {
+        node.segment.entries.remove(node.key, node);
+        remove(node);
+        evictions.increment();
+        if (log.isLoggable(Level.FINEST))
+            log.finest("evicted " + node.key);
+    }
+
+    private void remove(Node node) {
+        switch (node.queue) {
+        case WINDOW: windowWeight -= node.weight; break;
+        case PROBATION: probationWeight -= node.weight; break;
+        case PROTECTED: protectedWeight -= node.weight; break;
+        default: return;
+        }
+        unlink(node);
+        node.queue = DEAD;
+        node.value.release();
+        node.segment.retained -= node.weight;
+        weight.addAndGet(-node.weight);
+        categoryWeights.addAndGet(node.category.ordinal(), -node.weight);
+        categoryCounts.decrementAndGet(node.category.ordinal());
+    }
+
+    // append as the most recently used
+    private static void link(Node head, Node node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    private static void unlink(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+    }
+
+    /** An entry, or the sentinel head of a circular list (least recently used first). */
+    private static final class Node {
+        final Segment segment;
+        final String key;
+        final CachePolicy.Category category;
+        final SimpleResource value;
+        final int weight;
+
+        // guarded by the lock, a Node is only ever in one queue
+        int queue = DEAD;
+        Node prev, next;
+
+        Node() {
+            this(null, null, null, null, 0);
+            prev = next = this;
+        }
+
+        Node(Segment segment, String key, CachePolicy.Category category, SimpleResource value, int weight) {
+            this.segment = segment;
+            this.key = key;
+            this.category = category;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Approximate access frequency of names, 4-bit counters in a
+     * count-min sketch of depth 4, halved periodically so that the
+     * history ages.
+     *
+     * Only written with the lock held, see drainReads. A frequency
+     * read without the lock may be out of date, but only by the
+     * updates that are in progress: counters are single bytes, and
+     * the doorkeeper is replaced rather than cleared.
+     *
+     * The first access of a name only goes into a Bloom filter (the
+     * "doorkeeper"), so that the many names that are read once don't
+     * inflate the counts of everything else. The CachePolicy relies on
+     * small counts being accurate.
+     */
+    private static final class FrequencySketch {
+        private static final int WIDTH = 1 << 16;
+        private static final int MAX = 15;
+        private static final int RESET = 10 * WIDTH;
+
+        private final byte[] table = new byte[4 * WIDTH];
+        private volatile BloomFilter doorkeeper = new BloomFilter(WIDTH);
+        private int additions;
+
+        void increment(int hash) {
+            BloomFilter doorkeeper = this.doorkeeper;
+            if (!doorkeeper.mightContain(hash)) {
+                doorkeeper.add(hash);
+                if (++additions >= RESET || doorkeeper.isSaturated()) reset();
+                return;
+            }
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = index(hash, i);
+                if (table[index] < MAX) {
+                    table[index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= RESET) reset();
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX;
+            for (int i = 0; i < 4; i++) {
+                frequency = Math.min(frequency, table[index(hash, i)]);
+            }
+            return doorkeeper.mightContain(hash) ? frequency + 1 : frequency;
+        }
+
+        private void reset() {
+            additions = 0;
+            doorkeeper = new BloomFilter(WIDTH);
+            for (int i = 0; i < table.length; i++) {
+                table[i] = (byte) (table[i] >>> 1);
+            }
+        }
+
+        private static int index(int hash, int row) {
+            int h = (hash + row * 0x9E3779B9) * 0x85EBCA6B;
+            h ^= h >>> 15;
+            return row * WIDTH + (h & (WIDTH - 1));
+        }
+    }
+}
@@ -0,0 +1,33 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.IOException;
+
+/**
+ * How the ResourceCache encodes the content of the resources that it
+ * holds, trading CPU on every read for heap (or off-heap) space.
+ *
+ * Chosen by `class-monkey.cache.codec`, which is one of
+ *
+ * - `deflate` (the default) or `deflate:<level>`, where the level is
+ *   1 (fastest) to 9 (smallest). Deflated archive entries are held
+ *   exactly as they were stored.
+ * - `lz4`, an LZ4 block codec, which typically decodes several times
+ *   faster than deflate but holds more.
+ * - `none`, which holds content as it is.
+ * - the name of a class that implements this interface, with a public
+ *   no-argument constructor, visible to the system classloader.
+ *
+ * Implementations must be thread safe.
+ */
+public interface ResourceCodec {
+    /** @return a new array that holds the encoded region. */
+    byte[] encode(byte[] data, int offset, int length) throws IOException;
+
+    /**
+     * @param size the length of the content that was encoded.
+     * @return a new array of exactly `size' bytes, which the caller may keep.
+     */
+    byte[] decode(byte[] encoded, int offset, int length, int size) throws IOException;
+}
@@ -0,0 +1,107 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+import static fommil.ClassMonkeyUtils.*;
+
+/**
+ * The built-in ResourceCodecs and the one that has been chosen.
+ */
+final class ResourceCodecs {
+    private static final Logger log = Logger.getLogger(ResourceCodecs.class.getName());
+
+    /** Raw deflate data, as stored in zip archives, at the default level. */
+    static final Deflate DEFLATE = new Deflate(Deflater.DEFAULT_COMPRESSION);
+    static final ResourceCodec NONE = new None();
+    static final ResourceCodec LZ4 = new Lz4Codec();
+
+    private static final ResourceCodec configured = parse(ClassMonkeyOptions.get("cache.codec", "deflate"));
+
+    private ResourceCodecs() { }
+
+    /** The codec that cached resources should be held with. */
+    static ResourceCodec configured() {
+        return configured;
+    }
+
+    /** Falls back to DEFLATE, with a warning, if `spec' is bad. */
+    static ResourceCodec parse(String spec) {
+        String lower = spec.toLowerCase(Locale.ROOT);
+        switch (lower) {
+        case "deflate": return DEFLATE;
+        case "none": return NONE;
+        case "lz4": return LZ4;
+        default:
+        }
+        if (lower.startsWith("deflate:")) {
+            try {
+                int level = Integer.parseInt(lower.substring("deflate:".length()));
+                if (level >= 1 && level <= 9) return new Deflate(level);
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        } else if (!spec.isEmpty()) {
+            try {
+                Class<?> clazz = Class.forName(spec, true, ClassLoader.getSystemClassLoader());
+                return (ResourceCodec) clazz.newInstance();
+            } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+                log.warning("ignoring " + ClassMonkeyOptions.PREFIX + "cache.codec=" + spec + " (" + e + ")");
+                return DEFLATE;
+            }
+        }
+        log.warning("ignoring " + ClassMonkeyOptions.PREFIX + "cache.codec=" + spec + " (expected deflate, deflate:1 to deflate:9, lz4, none or a class name)");
+        return DEFLATE;
+    }
+
+    /** Whether `codec' produces raw deflate data, regardless of its level. */
+    static boolean isDeflate(ResourceCodec codec) {
+        return codec instanceof Deflate;
+    }
+
+    static final class Deflate implements ResourceCodec {
+        private final int level;
+
+        Deflate(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public byte[] encode(byte[] data, int offset, int length) throws IOException {
+            return deflateRaw(data, offset, length, level);
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded, int offset, int length, int size) throws IOException {
+            return enflateRaw(encoded, offset, length, size);
+        }
+
+        @Override
+        public String toString() {
+            return level == Deflater.DEFAULT_COMPRESSION ? "deflate" : "deflate:" + level;
+        }
+    }
+
+    private static final class None implements ResourceCodec {
+        @Override
+        public byte[] encode(byte[] data, int offset, int length) {
+            return Arrays.copyOfRange(data, offset, offset + length);
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded, int offset, int length, int size) throws IOException {
+            if (length != size) throw new IOException("expected " + size + " bytes but there are " + length);
+            return Arrays.copyOfRange(encoded, offset, offset + length);
+        }
+
+        @Override
+        public String toString() {
+            return "none";
+        }
+    }
+}
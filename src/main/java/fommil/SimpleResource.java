@@ -3,6 +3,7 @@
 package fommil;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
@@ -11,6 +12,10 @@ import java.nio.ByteBuffer;
 import java.security.CodeSigner;
 import java.util.Arrays;
 import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
 
 import static fommil.ClassMonkeyUtils.*;
 
@@ -18,26 +23,173 @@ import static fommil.ClassMonkeyUtils.*;
  * Clean-room implementation (not subject to the Oracle licences) of
  * sun.misc.Resource designed to be stateless, simple and not leak any
  * resources.
+ *
+ * The content is held encoded by a ResourceCodec. Deflated archive
+ * entries are held as raw deflate data (no zlib header), exactly as
+ * they were read without recompressing, until the cache recodes them
+ * with the configured codec, see ResourceCodecs.
+ *
+ * The ResourceCache may move the encoded data of the resources that it
+ * admits off-heap, into a ResourceArena, and releases it when they are
+ * dropped.
+ * Resources that are read repeatedly may be held inflated instead,
+ * see CachePolicy.
+ *
+ * Content is decoded straight into an array of the exact size, or
+ * inflated incrementally by getInputStream, and is never copied again.
  */
 final class SimpleResource extends sun.misc.Resource {
 
     private final String name;
     private final URI source, loc;
+    // of `compressed' or `offHeap', null if `inflated'
+    private final ResourceCodec codec;
+    // exactly one of these is set
     private final byte[] compressed;
+    private final ByteBuffer offHeap;
+    // of `offHeap', freed by release
+    private final ResourceArena.Allocation allocation;
+    // never given out, only copies
+    private final byte[] inflated;
     private final int length;
+    private final int crc;
+
+    // off-heap data is copied here to be inflated, larger entries are
+    // rare enough to have their own array
+    private static final int SCRATCH = 64 * 1024;
+    private static final ThreadLocal<byte[]> scratch = new ThreadLocal<>();
 
     // assumes that creater is trusted and will not retain a reference to bytes
     // code can be null if this is not a .class file
     SimpleResource(URI source, String name, URI loc, byte[] bytes) throws IOException {
+        this(source, name, loc, bytes, 0, bytes == null ? 0 : bytes.length);
+    }
+
+    SimpleResource(URI source, String name, URI loc, byte[] bytes, int offset, int length) throws IOException {
+        this(source, name, loc, length, crc32(notNull(bytes), offset, length),
+             ResourceCodecs.configured(), ResourceCodecs.configured().encode(bytes, offset, length));
+    }
+
+    // the region of `encoded' must be encoded by `codec', the array may be retained
+    private SimpleResource(URI source, String name, URI loc, int length, int crc,
+                           ResourceCodec codec, byte[] encoded, int offset, int encodedLength) {
         if (name == null) throw new IllegalArgumentException("`name' must not be null");
         if (loc == null) throw new IllegalArgumentException("`loc' must not be null");
-        if (bytes == null) throw new IllegalArgumentException("`bytes' must not be null");
 
         this.source = source;
         this.name = name;
         this.loc = loc;
-        this.compressed = deflate(bytes);
-        this.length = bytes.length;
+        this.length = length;
+        this.crc = crc;
+
+        this.codec = codec;
+        this.inflated = null;
+        this.offHeap = null;
+        this.allocation = null;
+        if (offset == 0 && encodedLength == encoded.length)
+            this.compressed = encoded;
+        else
+            this.compressed = Arrays.copyOfRange(encoded, offset, offset + encodedLength);
+    }
+
+    private SimpleResource(URI source, String name, URI loc, int length, int crc, ResourceCodec codec, byte[] encoded) {
+        this(source, name, loc, length, crc, codec, encoded, 0, encoded.length);
+    }
+
+    // `inflated' is retained
+    private SimpleResource(SimpleResource original, byte[] inflated) {
+        this.source = original.source;
+        this.name = original.name;
+        this.loc = original.loc;
+        this.length = original.length;
+        this.crc = original.crc;
+        this.codec = null;
+        this.compressed = null;
+        this.offHeap = null;
+        this.allocation = null;
+        this.inflated = inflated;
+    }
+
+    // the encoded data is in `allocation'
+    private SimpleResource(SimpleResource original, ResourceArena.Allocation allocation) {
+        this.source = original.source;
+        this.name = original.name;
+        this.loc = original.loc;
+        this.length = original.length;
+        this.crc = original.crc;
+        this.codec = original.codec;
+        this.compressed = null;
+        this.offHeap = allocation.buffer;
+        this.allocation = allocation;
+        this.inflated = null;
+    }
+
+    /** The same resource, held inflated so that reads only copy it. */
+    SimpleResource inflate() throws IOException {
+        if (inflated != null) return this;
+        return new SimpleResource(this, getBytes());
+    }
+
+    /**
+     * The same resource, with its encoded data in `arena', or this
+     * resource if it is inflated or the arena is disabled or full. The
+     * owner of the result must release it.
+     */
+    SimpleResource offHeap(ResourceArena arena) {
+        if (arena == null || compressed == null || compressed.length == 0) return this;
+        ResourceArena.Allocation allocation = arena.copyOf(compressed, 0, compressed.length);
+        if (allocation == null) return this;
+        return new SimpleResource(this, allocation);
+    }
+
+    /**
+     * Give back any off-heap memory, only by the owner and only once.
+     * The data can still be read afterwards, slabs are never reused.
+     */
+    void release() {
+        if (allocation != null) allocation.free();
+    }
+
+    /** The same resource, held encoded by `target'. */
+    SimpleResource recode(ResourceCodec target) throws IOException {
+        if (inflated != null || codec == target || ResourceCodecs.isDeflate(codec) && ResourceCodecs.isDeflate(target))
+            return this;
+        byte[] bytes = getBytes();
+        return new SimpleResource(source, name, loc, length, crc, target, target.encode(bytes, 0, bytes.length));
+    }
+
+    /**
+     * Create a resource from the raw deflate data of a zip entry, as
+     * stored in the archive, with the size and CRC from its central
+     * directory record. Only the given region of `buf' is retained.
+     */
+    static SimpleResource fromDeflated(URI source, String name, URI loc,
+                                       byte[] buf, int offset, int length,
+                                       int size, int crc) {
+        if (buf == null) throw new IllegalArgumentException("`buf' must not be null");
+        if (size < 0) throw new IllegalArgumentException(name + " is too large");
+        return new SimpleResource(source, name, loc, size, crc, ResourceCodecs.DEFLATE, buf, offset, length);
+    }
+
+    /**
+     * Create a resource from the data of a stored (uncompressed) zip
+     * entry, checked against the size and CRC from its central
+     * directory record as ZipFile would, since a bad local header or a
+     * replaced archive would otherwise be served as wrong content.
+     */
+    static SimpleResource fromStored(URI source, String name, URI loc,
+                                     byte[] buf, int offset, int length,
+                                     long size, int crc) throws IOException {
+        if (buf == null) throw new IllegalArgumentException("`buf' must not be null");
+        if (length != size) throw new ZipException("read " + length + " bytes but expected " + size + " for " + name);
+        if (crc32(buf, offset, length) != crc) throw new ZipException("CRC mismatch for " + name);
+        ResourceCodec codec = ResourceCodecs.configured();
+        return new SimpleResource(source, name, loc, length, crc, codec, codec.encode(buf, offset, length));
+    }
+
+    private static byte[] notNull(byte[] bytes) {
+        if (bytes == null) throw new IllegalArgumentException("`bytes' must not be null");
+        return bytes;
     }
 
     protected URI getLoc() {
@@ -54,16 +206,54 @@ final class SimpleResource extends sun.misc.Resource {
         return toURL(loc);
     }
 
+    /** The size of the content, without an IOException. */
+    int getSize() {
+        return length;
+    }
+
+    /** The number of bytes held by this resource. */
+    int getRetainedSize() {
+        if (inflated != null) return inflated.length;
+        return compressed != null ? compressed.length : offHeap.remaining();
+    }
+
     @Override
     public byte[] getBytes() throws IOException {
-        return enflate(compressed);
+        if (inflated != null) return inflated.clone();
+        byte[] data = compressed;
+        int size = data == null ? offHeap.remaining() : data.length;
+        if (data == null) {
+            // Inflater can't read from a ByteBuffer before Java 11
+            data = scratch(size);
+            offHeap.duplicate().get(data, 0, size);
+        }
+        if (!ResourceCodecs.isDeflate(codec)) return codec.decode(data, 0, size, length);
+        byte[] bytes = enflateRaw(data, 0, size, length);
+        // as read from the archive
+        if (crc32(bytes, 0, bytes.length) != crc)
+            throw new ZipException("CRC mismatch for " + name);
+        return bytes;
+    }
+
+    private static byte[] scratch(int size) {
+        if (size > SCRATCH) return new byte[size];
+        byte[] buf = scratch.get();
+        if (buf == null || buf.length < size) {
+            buf = new byte[Math.max(size, 4096)];
+            scratch.set(buf);
+        }
+        return buf;
     }
 
     ////////////////////////////////////////////////////////////////////////////////
     // simple wrappers
+    /** Deflated content is inflated as it is read, rather than all at once. */
     @Override
     public InputStream getInputStream() throws IOException {
-        return new ByteArrayInputStream(getBytes());
+        if (inflated != null) return new ByteArrayInputStream(inflated);
+        if (!ResourceCodecs.isDeflate(codec)) return new ByteArrayInputStream(getBytes());
+        ByteBuffer input = compressed != null ? ByteBuffer.wrap(compressed) : offHeap.duplicate();
+        return new InflatingInputStream(input, name, length, crc);
     }
 
     @Override
@@ -71,6 +261,8 @@ final class SimpleResource extends sun.misc.Resource {
         return length;
     }
 
+    // ClassLoader#defineClass uses the array of a writable heap buffer
+    // as it is: a read-only or direct buffer would be copied.
     @Override
     public ByteBuffer getByteBuffer() throws IOException {
         return ByteBuffer.wrap(getBytes());
@@ -97,4 +289,73 @@ final class SimpleResource extends sun.misc.Resource {
     public CodeSigner[] getCodeSigners() {
         return null;
     }
+
+    /**
+     * Inflates raw deflate data from a buffer, checking the size and
+     * CRC at the end. An array is given to the Inflater as it is,
+     * anything else a chunk at a time.
+     */
+    private static final class InflatingInputStream extends InflaterInputStream {
+        private static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+
+        private final ByteBuffer input;
+        private final String name;
+        private final int length;
+        private final int expected;
+        private final CRC32 crc = new CRC32();
+        private int count;
+        private boolean padded, ended;
+
+        InflatingInputStream(ByteBuffer input, String name, int length, int crc) {
+            // `in' is never read, see fill
+            super(EMPTY, new Inflater(true), input.hasArray() ? 1 : 512);
+            this.input = input;
+            this.name = name;
+            this.length = length;
+            this.expected = crc;
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (input.hasRemaining()) {
+                if (input.hasArray()) {
+                    inf.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+                    input.position(input.limit());
+                } else {
+                    int chunk = Math.min(buf.length, input.remaining());
+                    input.get(buf, 0, chunk);
+                    inf.setInput(buf, 0, chunk);
+                }
+            } else if (!padded) {
+                // nowrap requires a dummy byte at the end of the input
+                padded = true;
+                inf.setInput(buf, 0, 1);
+            } else {
+                throw new EOFException("unexpected end of deflate data for " + name);
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                crc.update(b, off, read);
+                count += read;
+            } else if (read < 0 && !ended) {
+                ended = true;
+                if (count != length)
+                    throw new ZipException("inflated " + count + " bytes but expected " + length + " for " + name);
+                if ((int) crc.getValue() != expected)
+                    throw new ZipException("CRC mismatch for " + name);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // only the default Inflater is ended by the superclass
+            inf.end();
+            super.close();
+        }
+    }
 }
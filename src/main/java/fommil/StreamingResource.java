@@ -0,0 +1,268 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSigner;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static fommil.ClassMonkeyUtils.*;
+
+/**
+ * A sun.misc.Resource for entries that are too big to be held in
+ * memory (e.g. models or embedded databases), which reads from the
+ * file every time it is asked for its content and is never cached.
+ *
+ * Resources larger than `class-monkey.stream.threshold' (default 1m)
+ * are streamed, as are any that are too large for an array. The file
+ * is only open for the duration of each read of a stream, which is of
+ * at most 64k, so a stream that is abandoned holds no file handle.
+ */
+final class StreamingResource extends sun.misc.Resource {
+    private static final long THRESHOLD = ClassMonkeyOptions.getBytes("stream.threshold", 1L << 20);
+    private static final int CHUNK = 64 * 1024;
+
+    private final URI source;
+    private final String name;
+    private final URI loc;
+    private final File file;
+    // of the local header, or -1 if `file' is the resource
+    private final long headerOffset;
+    private final int method;
+    private final long compressedSize;
+    private final long size;
+    private final int crc;
+
+    private StreamingResource(URI source, String name, URI loc, File file,
+                              long headerOffset, int method, long compressedSize, long size, int crc) {
+        this.source = source;
+        this.name = name;
+        this.loc = loc;
+        this.file = file;
+        this.headerOffset = headerOffset;
+        this.method = method;
+        this.compressedSize = compressedSize;
+        this.size = size;
+        this.crc = crc;
+    }
+
+    /** Whether a resource of `size' bytes should be streamed. */
+    static boolean streamed(long size) {
+        return size > THRESHOLD || size > Integer.MAX_VALUE - 8;
+    }
+
+    /** An entry of an archive, as described by its central directory record. */
+    static StreamingResource fromArchive(URI source, String name, URI loc, File archive,
+                                         long headerOffset, int method, long compressedSize, long size, int crc) throws ZipException {
+        if (method != CentralDirectory.STORED && method != CentralDirectory.DEFLATED)
+            throw new ZipException(archive + " uses unsupported compression method " + method + " for " + name);
+        return new StreamingResource(source, name, loc, archive, headerOffset, method, compressedSize, size, crc);
+    }
+
+    /** A file, of which only the size is checked. */
+    static StreamingResource fromFile(URI source, String name, File file, long size) {
+        return new StreamingResource(source, name, file.toURI(), file, -1, CentralDirectory.STORED, size, size, 0);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public URL getURL() {
+        return toURL(loc);
+    }
+
+    @Override
+    public URL getCodeSourceURL() {
+        return toURL(source);
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return new Stream();
+    }
+
+    @Override
+    public int getContentLength() throws IOException {
+        return size > Integer.MAX_VALUE ? -1 : (int) size;
+    }
+
+    // read straight into an array of the exact size
+    @Override
+    public byte[] getBytes() throws IOException {
+        if (size > Integer.MAX_VALUE - 8) throw new IOException(name + " is too large to be held in an array");
+        byte[] bytes = new byte[(int) size];
+        try (InputStream in = getInputStream()) {
+            int count = 0;
+            while (count < bytes.length) {
+                int read = in.read(bytes, count, bytes.length - count);
+                if (read < 0) break;
+                count += read;
+            }
+            // checks the size and CRC
+            if (count != bytes.length || in.read() >= 0)
+                throw new ZipException("expected " + size + " bytes for " + name);
+        }
+        return bytes;
+    }
+
+    // URLClassLoader falls back to getBytes
+    @Override
+    public ByteBuffer getByteBuffer() throws IOException {
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////////////////
+    // things we don't care to implement...
+    @Override
+    public Manifest getManifest() throws IOException {
+        return null;
+    }
+
+    @Override
+    public java.security.cert.Certificate[] getCertificates() {
+        return null;
+    }
+
+    @Override
+    public CodeSigner[] getCodeSigners() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "StreamingResource(" + loc + ", " + size + " bytes)";
+    }
+
+    /**
+     * Reads (and inflates) the data a chunk at a time, checking the
+     * size and (for archive entries) the CRC at the end.
+     *
+     * Each chunk is read with a positional FileChannel that is closed
+     * before returning. An abandoned stream only holds an Inflater,
+     * which frees itself when it is collected.
+     */
+    private final class Stream extends InputStream {
+        private final byte[] single = new byte[1];
+        private Inflater inflater;
+        private byte[] buffer;
+        // of the next stored byte to be read, -1 until the first read
+        private long position = -1;
+        // of the stored data that is still to be read
+        private long remaining = compressedSize;
+        private long count;
+        private final CRC32 checksum = new CRC32();
+        private boolean padded, done, closed;
+
+        @Override
+        public int read() throws IOException {
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) throw new IndexOutOfBoundsException();
+            if (done) return -1;
+            if (closed) throw new IOException("stream closed");
+            if (len == 0) return 0;
+            int read = method == CentralDirectory.DEFLATED ? readDeflated(b, off, len) : readStored(b, off, len);
+            if (read < 0) {
+                finish();
+                return -1;
+            }
+            checksum.update(b, off, read);
+            count += read;
+            return read;
+        }
+
+        private int readStored(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) return -1;
+            return readChunk(ByteBuffer.wrap(b, off, (int) Math.min(Math.min(len, CHUNK), remaining)));
+        }
+
+        private int readDeflated(byte[] b, int off, int len) throws IOException {
+            if (inflater == null) {
+                inflater = new Inflater(true);
+                buffer = new byte[(int) Math.min(CHUNK, Math.max(1, compressedSize))];
+            }
+            try {
+                while (true) {
+                    int read = inflater.inflate(b, off, len);
+                    if (read > 0) return read;
+                    if (inflater.finished()) return -1;
+                    if (inflater.needsDictionary())
+                        throw new ZipException("deflate data requires a dictionary for " + name);
+                    fill();
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException(e.getMessage() + " for " + name);
+            }
+        }
+
+        private void fill() throws IOException {
+            if (remaining == 0) {
+                // nowrap requires a dummy byte at the end of the input
+                if (padded) throw new EOFException("unexpected end of deflate data for " + name);
+                padded = true;
+                inflater.setInput(new byte[1]);
+                return;
+            }
+            int read = readChunk(ByteBuffer.wrap(buffer, 0, (int) Math.min(buffer.length, remaining)));
+            inflater.setInput(buffer, 0, read);
+        }
+
+        // fills `into' from `position', the file is open for no longer than this
+        private int readChunk(ByteBuffer into) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                if (position < 0) position = headerOffset < 0 ? 0 : CentralDirectory.dataOffset(channel, headerOffset);
+                int read = 0;
+                while (into.hasRemaining()) {
+                    int got = channel.read(into, position + read);
+                    if (got < 0) throw new EOFException("unexpected end of " + file + " for " + name);
+                    read += got;
+                }
+                position += read;
+                remaining -= read;
+                return read;
+            }
+        }
+
+        private void finish() throws IOException {
+            done = true;
+            close();
+            if (count != size)
+                throw new ZipException("read " + count + " bytes but expected " + size + " for " + name);
+            if (headerOffset >= 0 && (int) checksum.getValue() != crc)
+                throw new ZipException("CRC mismatch for " + name);
+        }
+
+        @Override
+        public int available() throws IOException {
+            if (done || position < 0) return 0;
+            return (int) Math.min(Integer.MAX_VALUE, size - count);
+        }
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            if (inflater != null) {
+                inflater.end();
+                inflater = null;
+            }
+        }
+    }
+}
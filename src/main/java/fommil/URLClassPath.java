@@ -5,13 +5,26 @@ package fommil;
 import java.io.*;
 import java.lang.ref.SoftReference;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.AccessControlContext;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.*;
 import java.util.zip.*;
 
@@ -23,13 +36,38 @@ import static fommil.ClassMonkeyUtils.*;
  * the API allows), simple and not leak or maintain file handles.
  *
  * Pre-loading is used to optimise jar / zip archive loading (at the
- * cost of an initial overhead). Archives are assumed to be immutable
- * for the lifetime of an instance.
+ * cost of an initial overhead), unless `class-monkey.index.lazy' is
+ * set, in which case archives are indexed when a lookup first reaches
+ * them. Archives are assumed to be immutable for the lifetime of an
+ * instance.
  *
  * "Class-Path" entries in Manifests are not supported (it's
  * over-engineering): only explicitly added URLs will be scanned.
  *
- * Directory based URLs are lazily fetched with no caching.
+ * Resources above `class-monkey.stream.threshold' are never held in
+ * memory, see StreamingResource.
+ *
+ * Directory based URLs are lazily fetched with no caching, unless
+ * the FileWatcher is enabled, in which case lookups are remembered
+ * until anything in the directory changes, or
+ * `class-monkey.directory.index' is set, in which case each package
+ * directory is listed when first needed and misses are answered from
+ * the listing for as long as the directory's mtime is unchanged (or
+ * briefly, if the directory was modified in the last few seconds).
+ *
+ * Lookups are routed through a package index: only the providers
+ * that contain the requested package (plus any providers that cannot
+ * enumerate their contents, such as directories) are consulted, in
+ * the order that they were added. A Bloom filter over every indexed
+ * name allows most misses to skip the indexed providers entirely.
+ *
+ * If `class-monkey.trace' is set, the resources found by each
+ * classpath are recorded and replayed into the cache by the next JVM
+ * that creates the same classpath, see ClassTrace.
+ *
+ * If `class-monkey.jfr' is set, indexing, reads that miss the cache
+ * and directory lookups are recorded as Flight Recorder events, see
+ * Flight.
  *
  * Network protocols are not supported (let's be honest, you shouldn't
  * be using network classloaders in this day and age).
@@ -46,8 +84,31 @@ final public class URLClassPath extends sun.misc.URLClassPath {
     // recall that java.net.URL#equals will use a DNS, so avoid URL in collections
     private final CopyOnWriteArraySet<URI> uris = new CopyOnWriteArraySet<>();
     private final CopyOnWriteArrayList<ResourceProvider> providers = new CopyOnWriteArrayList<>();
+    // package name to the providers that may answer for it, in
+    // classpath order. Providers that can't list their packages are
+    // in every entry and also in `unindexed', which is used for
+    // packages that no indexed provider contains. Lazy archives are
+    // moved out of `unindexed' once they are indexed, see indexed.
+    private final ConcurrentMap<String, ResourceProvider[]> packages = new ConcurrentHashMap<>();
+    private volatile ResourceProvider[] unindexed = new ResourceProvider[0];
+    // union of every indexed provider's names, replaced (never
+    // written to) when a provider is registered
+    private volatile BloomFilter filter = new BloomFilter(0);
     private final URLStreamHandlerFactory factory;
     private final AtomicBoolean closed = new AtomicBoolean(false);
+    // null unless tracing
+    private final ClassTrace.Recording recording;
+
+    private final Counter lookups = new Counter();
+    private final Counter misses = new Counter();
+    private final Counter packageSkips = new Counter();
+    private final Counter filterSkips = new Counter();
+
+    // JVM-wide, see ClassMonkeyMetrics
+    static final Counter allLookups = new Counter();
+    static final Counter allMisses = new Counter();
+    static final Counter allPackageSkips = new Counter();
+    static final Counter allFilterSkips = new Counter();
 
     // primary constructor, intentionally disable the super
     // implementation by sending empty data.
@@ -56,9 +117,21 @@ final public class URLClassPath extends sun.misc.URLClassPath {
 
         this.factory = factory;
 
-        for (URL url: urls) {
-            addURL(url);
+        addURLs(urls);
+
+        // identified by the URLs that it was created with, not those
+        // that are added later
+        ClassTrace traces = ClassTrace.shared();
+        if (traces != null) {
+            String classpath = ClassTrace.classpath(uris);
+            this.recording = traces.recording(classpath);
+            Prefetcher.replay(this, traces, classpath);
+        } else {
+            this.recording = null;
         }
+
+        if (!Prefetcher.defaults().isEmpty())
+            prefetch(Prefetcher.defaults().toArray(new String[0]));
     }
 
     public URLClassPath(URL[] urls, URLStreamHandlerFactory factory, AccessControlContext acc) {
@@ -75,15 +148,46 @@ final public class URLClassPath extends sun.misc.URLClassPath {
     }
 
     // legacy behaviour is to reject all future calls, even though we
-    // have nothing to close
+    // have no file handles to close. Shared archives are released and
+    // drop their cached resources when their last user is closed.
     @Override
-    public List<IOException> closeLoaders() {
+    public synchronized List<IOException> closeLoaders() {
         if (log.isLoggable(Level.FINER))
             log.finer("closeLoaders()");
-        closed.set(true);
+        if (log.isLoggable(Level.FINE))
+            log.fine("lookups = " + lookups + ", misses = " + misses + ", skipped by package = " + packageSkips + ", skipped by filter = " + filterSkips + ", " + ResourceCache.shared());
+        if (closed.compareAndSet(false, true)) {
+            for (ResourceProvider provider : providers) {
+                if (provider instanceof ArchiveResourceProvider)
+                    ((ArchiveResourceProvider) provider).forget(this);
+                provider.release();
+            }
+            if (recording != null) ClassTrace.shared().close(recording);
+        }
         return Collections.emptyList();
     }
 
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * Read the resources that match any of the patterns (see Prefetcher)
+     * into the cache in the background, so that they are ready before
+     * they are needed. Only archives that have been added so far are
+     * prefetched.
+     */
+    public Future<?> prefetch(String... patterns) {
+        List<ArchiveResourceProvider> archives = new ArrayList<>();
+        for (ResourceProvider provider : providers) {
+            if (provider instanceof ArchiveResourceProvider)
+                archives.add((ArchiveResourceProvider) provider);
+        }
+        if (log.isLoggable(Level.FINER))
+            log.finer("prefetch(" + Arrays.toString(patterns) + ") from " + archives.size() + " archives");
+        return Prefetcher.prefetch(this, archives, Arrays.asList(patterns));
+    }
+
     ///////////////////////////////////////////////////////////////////////////////
     // getters / setters
     @Override
@@ -107,51 +211,286 @@ final public class URLClassPath extends sun.misc.URLClassPath {
 
         URI uri = toURI(url);
         if (uris.add(uri)) {
-            String scheme = uri.getScheme();
-            if (scheme.equals("jar")) {
+            ResourceProvider provider = resolve(url, uri);
+            if (provider != null) register(provider);
+        }
+    }
+
+    /**
+     * Equivalent to calling addURL for each of `urls', in order, except
+     * that archives are indexed in parallel (see IndexPool). If one of
+     * them is bad, the URLs before it are still added.
+     */
+    public void addURLs(URL[] urls) {
+        if (log.isLoggable(Level.FINER))
+            log.finer("addURLs(" + Arrays.toString(urls) + ")");
+        if (urls == null) throw new NullPointerException("`urls' must not be null");
+        if (closed.get()) return;
+
+        List<URL> todo = new ArrayList<>();
+        List<URI> todoURIs = new ArrayList<>();
+        Set<URI> seen = new HashSet<>();
+        for (URL url : urls) {
+            if (url == null) continue;
+            URI uri = toURI(url);
+            if (!uris.contains(uri) && seen.add(uri)) {
+                todo.add(url);
+                todoURIs.add(uri);
+            }
+        }
+
+        List<Callable<ResourceProvider>> tasks = new ArrayList<>();
+        for (int i = 0; i < todo.size(); i++) {
+            final URL url = todo.get(i);
+            final URI uri = todoURIs.get(i);
+            tasks.add(new Callable<ResourceProvider>() {
+                @Override
+                public ResourceProvider call() {
+                    return resolve(url, uri);
+                }
+            });
+        }
+        List<Future<ResourceProvider>> resolved = IndexPool.invokeAll(tasks);
+
+        // published in classpath order. Everything that was resolved is
+        // retained, so whatever isn't published (after a failure, when
+        // closed or if another thread added the URI) must be released.
+        int next = 0;
+        try {
+            while (next < resolved.size()) {
+                if (closed.get()) return;
+                int i = next++;
+                boolean added = uris.add(todoURIs.get(i));
+                ResourceProvider provider = IndexPool.join(resolved.get(i));
+                if (provider == null) continue;
+                if (added) register(provider);
+                else provider.release();
+            }
+        } finally {
+            for (int i = next; i < resolved.size(); i++) {
+                ResourceProvider provider = IndexPool.resultOrNull(resolved.get(i));
+                if (provider != null) provider.release();
+            }
+        }
+    }
+
+    // may be called concurrently, the result is retained for the
+    // caller, who must register or release it.
+    private ResourceProvider resolve(URL url, URI uri) {
+        ResourceProvider provider = open(url, uri);
+        if (provider != null) provider.retain();
+        return provider;
+    }
+
+    // legacy behaviour is to ignore files that don't exist
+    private ResourceProvider open(URL url, URI uri) {
+        String scheme = uri.getScheme();
+        if (scheme.equals("jar")) {
+            try {
+                // http://stackoverflow.com/questions/8014099
+                JarURLConnection connection = (JarURLConnection) url.openConnection();
+                URL jarURL = connection.getJarFileURL();
+                URI jarURI = toURI(jarURL);
+                if (log.isLoggable(Level.FINE))
+                    log.fine("addURL jarFileURL = " + jarURL + ", jarFileURI = " + jarURI);
+                ArchiveResourceProvider provider = ArchiveResourceCache.getOrCreate(jarURI);
+                if (provider == null) return null;
+                String restriction = connection.getEntryName();
+                if (restriction != null)
+                    return new RestrictedResourceProvider(provider, restriction);
+                else
+                    return provider;
+            } catch (IOException e) {
+                throw new IllegalArgumentException(uri + " is a bad archive", e);
+            }
+        } else if (uri.getScheme().equals("file")) {
+            String path = uri.getPath();
+            if (path == null)
+                throw new IllegalArgumentException("bad URL (no path part) " + uri);
+
+            if (path.endsWith(".jar") || path.endsWith(".zip")) {
                 try {
-                    // http://stackoverflow.com/questions/8014099
-                    JarURLConnection connection = (JarURLConnection) url.openConnection();
-                    URL jarURL = connection.getJarFileURL();
-                    URI jarURI = toURI(jarURL);
-                    if (log.isLoggable(Level.FINE))
-                        log.fine("addURL jarFileURL = " + jarURL + ", jarFileURI = " + jarURI);
-                    ArchiveResourceProvider provider = ArchiveResourceCache.getOrCreate(jarURI);
-                    if (provider != null) {
-                        // legacy behaviour is to ignore files that don't exist
-                        String restriction = connection.getEntryName();
-                        if (restriction != null)
-                            providers.add(new RestrictedResourceProvider(provider, restriction));
-                        else
-                            providers.add(provider);
-                    }
+                    return ArchiveResourceCache.getOrCreate(uri);
                 } catch (IOException e) {
                     throw new IllegalArgumentException(uri + " is a bad archive", e);
                 }
-            } else if (uri.getScheme().equals("file")) {
-                String path = uri.getPath();
-                if (path == null)
-                    throw new IllegalArgumentException("bad URL (no path part) " + uri);
-
-                if (path.endsWith(".jar") || path.endsWith(".zip")) {
-                    try {
-                        ArchiveResourceProvider provider = ArchiveResourceCache.getOrCreate(uri);
-                        if (provider != null) {
-                            // legacy behaviour is to ignore files that don't exist
-                            providers.add(provider);
-                        }
-                    } catch (IOException e) {
-                        throw new IllegalArgumentException(uri + " is a bad archive", e);
-                    }
-                } else {
-                    providers.add(new DirectoryResourceProvider(uri));
-                }
             } else {
-                throw new UnsupportedOperationException("Generic URL scheme: " + uri);
+                return new DirectoryResourceProvider(uri);
+            }
+        } else {
+            throw new UnsupportedOperationException("Generic URL scheme: " + uri);
+        }
+    }
+
+    // appending to the end of every affected entry preserves the
+    // first-match ordering of a linear scan over `providers'.
+    //
+    // the filter is replaced before the package entries so that a
+    // reader never sees a provider that is missing from the filter.
+    // Readers don't lock, so a published filter is never written to.
+    //
+    // takes over the caller's retention of `provider'.
+    private synchronized void register(ResourceProvider provider) {
+        if (closed.get()) {
+            provider.release();
+            return;
+        }
+        providers.add(provider);
+        Set<String> contents = provider.packages();
+        // unless it was indexed in the meantime
+        if (contents == null && provider instanceof ArchiveResourceProvider
+            && !((ArchiveResourceProvider) provider).whenIndexed(this))
+            contents = provider.packages();
+        if (contents != null) addToFilter(provider);
+        if (contents == null) {
+            for (Map.Entry<String, ResourceProvider[]> entry : packages.entrySet()) {
+                entry.setValue(append(entry.getValue(), provider));
+            }
+            unindexed = append(unindexed, provider);
+        } else {
+            for (String pkg : contents) {
+                ResourceProvider[] existing = packages.get(pkg);
+                packages.put(pkg, append(existing == null ? unindexed : existing, provider));
             }
         }
     }
 
+    /**
+     * Called by a lazy archive that was registered before it had been
+     * indexed, once its packages are known. It is taken out of
+     * `unindexed' and the entries of the packages that it doesn't
+     * contain, so that it is only probed for its own packages and is
+     * covered by the filter, as if it had been indexed when added.
+     */
+    synchronized void indexed(ArchiveResourceProvider provider) {
+        if (closed.get()) return;
+        ResourceProvider[] before = unindexed;
+        ResourceProvider[] after = remove(before, provider);
+        if (after.length == before.length) return;
+        Set<String> contents = provider.packages();
+        addToFilter(provider);
+        for (Map.Entry<String, ResourceProvider[]> entry : packages.entrySet()) {
+            if (!contents.contains(entry.getKey()))
+                entry.setValue(remove(entry.getValue(), provider));
+        }
+        // `before' is every provider that a new package could be in,
+        // already in classpath order
+        for (String pkg : contents) {
+            packages.putIfAbsent(pkg, before);
+        }
+        unindexed = after;
+        if (log.isLoggable(Level.FINER))
+            log.finer(provider + " has " + contents.size() + " packages, " + after.length + " providers remain unindexed");
+    }
+
+    // callers must hold the lock
+    private void addToFilter(ResourceProvider provider) {
+        BloomFilter updated = filter.copy();
+        provider.addNamesTo(updated);
+        if (updated.isSaturated()) {
+            updated = new BloomFilter(2 * updated.size());
+            for (ResourceProvider existing : providers) {
+                if (existing.packages() != null)
+                    existing.addNamesTo(updated);
+            }
+        }
+        filter = updated;
+    }
+
+    private static ResourceProvider[] append(ResourceProvider[] existing, ResourceProvider provider) {
+        ResourceProvider[] updated = Arrays.copyOf(existing, existing.length + 1);
+        updated[existing.length] = provider;
+        return updated;
+    }
+
+    // every occurrence
+    private static ResourceProvider[] remove(ResourceProvider[] existing, ResourceProvider provider) {
+        int found = 0;
+        for (ResourceProvider candidate : existing) {
+            if (candidate == provider) found++;
+        }
+        if (found == 0) return existing;
+        ResourceProvider[] updated = new ResourceProvider[existing.length - found];
+        int i = 0;
+        for (ResourceProvider candidate : existing) {
+            if (candidate != provider) updated[i++] = candidate;
+        }
+        return updated;
+    }
+
+    // the providers that could possibly contain `name', in classpath order
+    private ResourceProvider[] candidates(String name) {
+        lookups.increment();
+        allLookups.increment();
+        ResourceProvider[] found = packages.get(packageOf(name));
+        if (found == null) {
+            packageSkips.increment();
+            allPackageSkips.increment();
+            return unindexed;
+        }
+        if (!filter.mightContain(name)) {
+            filterSkips.increment();
+            allFilterSkips.increment();
+            return unindexed;
+        }
+        return found;
+    }
+
+    /**
+     * The first archive that contains `name', ignoring any other kind of
+     * provider that might shadow it.
+     */
+    ArchiveResourceProvider archiveOf(String name) throws IOException {
+        ResourceProvider[] found = packages.get(packageOf(name));
+        for (ResourceProvider provider : found == null ? unindexed : found) {
+            if (provider instanceof ArchiveResourceProvider && ((ArchiveResourceProvider) provider).contains(name))
+                return (ArchiveResourceProvider) provider;
+        }
+        return null;
+    }
+
+    long getLookupCount() {
+        return lookups.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    /** Lookups where the package index ruled out every indexed provider. */
+    long getPackageSkipCount() {
+        return packageSkips.sum();
+    }
+
+    /** Lookups where the Bloom filter ruled out every indexed provider. */
+    long getFilterSkipCount() {
+        return filterSkips.sum();
+    }
+
+    private void missed() {
+        misses.increment();
+        allMisses.increment();
+    }
+
+    /**
+     * The package (directory) part of a resource name, without leading
+     * or trailing slashes, e.g. "java/lang" for "/java/lang/Object.class".
+     */
+    static String packageOf(String name) {
+        int start = 0;
+        while (start < name.length() && name.charAt(start) == '/') start++;
+        int end = name.lastIndexOf('/');
+        if (end < start) return "";
+        return name.substring(start, end);
+    }
+
+    // equivalent to name.replaceAll("^/+", "")
+    static String stripLeadingSlashes(String name) {
+        int start = 0;
+        while (start < name.length() && name.charAt(start) == '/') start++;
+        return start == 0 ? name : name.substring(start);
+    }
+
     ///////////////////////////////////////////////////////////////////////////////
     // redundant public API
     @Override
@@ -170,10 +509,11 @@ final public class URLClassPath extends sun.misc.URLClassPath {
     public URL findResource(String name, boolean ignoredSecurityCheck) {
         if (closed.get()) return null;
         try {
-            for (ResourceProvider provider : providers) {
+            for (ResourceProvider provider : candidates(name)) {
                 URI found = provider.find(name);
                 if (found != null) return toURL(found);
             }
+            missed();
             if (log.isLoggable(Level.FINE))
                 log.fine("findResource missed: " + name);
             return null;
@@ -186,10 +526,14 @@ final public class URLClassPath extends sun.misc.URLClassPath {
     public sun.misc.Resource getResource(String name) {
         if (closed.get()) return null;
         try {
-            for (ResourceProvider provider : providers) {
-                SimpleResource found = provider.get(name);
-                if (found != null) return found;
+            for (ResourceProvider provider : candidates(name)) {
+                sun.misc.Resource found = provider.get(name);
+                if (found != null) {
+                    if (recording != null) recording.record(stripLeadingSlashes(name));
+                    return found;
+                }
             }
+            missed();
             if (log.isLoggable(Level.FINE))
                 log.fine("getResource missed: " + name);
             return null;
@@ -205,7 +549,7 @@ final public class URLClassPath extends sun.misc.URLClassPath {
         if (closed.get()) return null;
         try {
             Set<URI> all = new LinkedHashSet<>();
-            for (ResourceProvider provider : providers) {
+            for (ResourceProvider provider : candidates(name)) {
                 URI found = provider.find(name);
                 if (found != null)
                     all.add(found);
@@ -214,8 +558,11 @@ final public class URLClassPath extends sun.misc.URLClassPath {
             for (URI uri : all) {
                 urls.add(toURL(uri));
             }
-            if (log.isLoggable(Level.FINE) && urls.isEmpty())
-                log.fine("findResources missed: " + name);
+            if (urls.isEmpty()) {
+                missed();
+                if (log.isLoggable(Level.FINE))
+                    log.fine("findResources missed: " + name);
+            }
 
             return Collections.enumeration(urls);
         } catch (IOException e) {
@@ -228,13 +575,16 @@ final public class URLClassPath extends sun.misc.URLClassPath {
         if (closed.get()) return null;
         try {
             Set<sun.misc.Resource> all = new LinkedHashSet<>();
-            for (ResourceProvider provider : providers) {
-                SimpleResource found = provider.get(name);
+            for (ResourceProvider provider : candidates(name)) {
+                sun.misc.Resource found = provider.get(name);
                 if (found != null)
                     all.add(found);
             }
-            if (log.isLoggable(Level.FINE) && all.isEmpty())
-                log.fine("getResources missed: " + name);
+            if (all.isEmpty()) {
+                missed();
+                if (log.isLoggable(Level.FINE))
+                    log.fine("getResources missed: " + name);
+            }
 
             return Collections.enumeration(all);
         } catch (IOException e) {
@@ -246,7 +596,15 @@ final public class URLClassPath extends sun.misc.URLClassPath {
     // the core implementation
     static interface ResourceProvider {
         URI find(String name) throws IOException;
-        SimpleResource get(String name) throws IOException;
+        sun.misc.Resource get(String name) throws IOException;
+        /** The packages that contain resources, or null if unknown. */
+        Set<String> packages();
+        /** Only meaningful if packages() is known. */
+        void addNamesTo(BloomFilter filter);
+        /** Called when a URLClassPath starts using this provider. */
+        void retain();
+        /** Called when a URLClassPath that was using this provider is closed. */
+        void release();
     }
 
     /** Wraps another ResourceProvider but only allows queries to a subset of the allowed resources. */
@@ -266,39 +624,204 @@ final public class URLClassPath extends sun.misc.URLClassPath {
             return delegate.find(name);
         }
 
-        @Override public SimpleResource get(String name) throws IOException {
+        @Override public sun.misc.Resource get(String name) throws IOException {
             name = name.replaceAll("^/+", "");
             if (!name.startsWith(restriction)) return null;
             return delegate.get(name);
         }
+
+        @Override
+        public Set<String> packages() {
+            return null;
+        }
+
+        @Override
+        public void addNamesTo(BloomFilter filter) { }
+
+        @Override
+        public void retain() {
+            delegate.retain();
+        }
+
+        @Override
+        public void release() {
+            delegate.release();
+        }
     }
 
-    static private final class DirectoryResourceProvider implements ResourceProvider {
+    static private final class DirectoryResourceProvider implements ResourceProvider, FileWatcher.Listener {
         private static final Logger log = Logger.getLogger(DirectoryResourceProvider.class.getName());
 
+        // list each package directory, rather than stat every name
+        private static final boolean INDEX = ClassMonkeyOptions.getBoolean("directory.index", false);
+        // a listing of a directory that changed more recently than this
+        // may have missed entries with the same mtime, so is only reused
+        // for RELIST, rather than listing it again on every lookup
+        private static final long RACY = 2000;
+        private static final long RELIST = 100;
+
         // should we perhaps be using the nio FileSystem API?
         private final URI base;
+        private final File dir;
+        private final Path root;
+        private final boolean watched;
+
+        // when indexed or watched: the entries of each package directory,
+        // revalidated by its mtime (which FileStats may cache) or kept
+        // until the watcher says it changed. Bounded by the directories
+        // that exist, unlike a cache of every name that was asked for.
+        private final ConcurrentMap<String, Listing> listings;
+        private final AtomicInteger generation = new AtomicInteger();
 
         public DirectoryResourceProvider(URI base) {
+            this(base, INDEX);
+        }
+
+        DirectoryResourceProvider(URI base, boolean index) {
             this.base = base;
+            this.dir = new File(base);
+            this.root = dir.getAbsoluteFile().toPath();
+            FileWatcher watcher = FileWatcher.shared();
+            this.watched = watcher != null && watcher.register(dir, true);
+            if (watched) watcher.subscribe(dir, this);
+            this.listings = index || watched ? new ConcurrentHashMap<String, Listing>() : null;
+        }
+
+        private static final Listing ABSENT = new Listing(0L, Collections.<String>emptySet(), 0L);
+
+        private static final class Listing {
+            // zero if the directory doesn't exist
+            final long lastModified;
+            final Set<String> names;
+            // when it was listed, if it is RACY, otherwise zero
+            final long racy;
+
+            Listing(long lastModified, Set<String> names, long racy) {
+                this.lastModified = lastModified;
+                this.names = names;
+                this.racy = racy;
+            }
         }
 
         @Override
         public URI find(String name) throws IOException {
-            File file = new File(new File(base), name);
-            if (!file.isFile()) return null;
+            File file = new File(dir, name);
+            if (!lookup(file, name)) return null;
             else return file.toURI();
         }
 
+        private boolean lookup(File file, String name) {
+            Object event = Flight.begin(Flight.DIRECTORY_LOOKUP);
+            boolean found = isFile(file, name);
+            if (event != null) Flight.commit(event, dir.getPath(), name, found);
+            return found;
+        }
+
+        private boolean isFile(File file, String name) {
+            String key = stripLeadingSlashes(name);
+            if (!cacheable(key)) return file.isFile();
+            // a listing doesn't say what kind of entry it is
+            if (listings != null) return listed(key) && file.isFile();
+            return file.isFile();
+        }
+
+        private boolean listed(String key) {
+            String pkg = packageOf(key);
+            String simple = pkg.isEmpty() ? key : key.substring(pkg.length() + 1);
+            return listing(pkg).names.contains(simple);
+        }
+
+        private Listing listing(String pkg) {
+            int before = generation.get();
+            Listing cached = listings.get(pkg);
+            // the watcher removes listings that change
+            if (watched && cached != null) return cached;
+            if (!pkg.isEmpty()) {
+                if (cached == null || cached.lastModified == 0) {
+                    // statting something that doesn't exist is relatively
+                    // expensive, and most packages won't, so ask the parent.
+                    int slash = pkg.lastIndexOf('/');
+                    String parent = slash < 0 ? "" : pkg.substring(0, slash);
+                    if (!listing(parent).names.contains(pkg.substring(slash + 1))) return ABSENT;
+                }
+            }
+            File packageDir = pkg.isEmpty() ? dir : new File(dir, pkg);
+            long lastModified = FileStats.lastModified(packageDir, watched);
+            Listing listing = listings.get(pkg);
+            long now = System.currentTimeMillis();
+            if (listing == null || listing.lastModified != lastModified || listing.racy != 0 && now - listing.racy > RELIST) {
+                listing = list(packageDir, lastModified, watched || now - lastModified > RACY ? 0 : now);
+                listings.put(pkg, listing);
+                if (generation.get() != before) listings.remove(pkg, listing);
+            }
+            return listing;
+        }
+
+        private Listing list(File packageDir, long lastModified, long racy) {
+            // null if it isn't a directory
+            String[] names = lastModified == 0 ? null : packageDir.list();
+            if (names == null)
+                return new Listing(lastModified, Collections.<String>emptySet(), racy);
+            if (log.isLoggable(Level.FINEST))
+                log.finest(toString() + " listed " + names.length + " entries in " + packageDir);
+            return new Listing(lastModified, new HashSet<>(Arrays.asList(names)), racy);
+        }
+
+        // names that may refer to the same file in more than one way are
+        // not worth the bother
+        private static boolean cacheable(String name) {
+            return name.indexOf('\\') < 0 && name.indexOf("//") < 0 && name.indexOf("./") < 0 && !name.endsWith(".");
+        }
+
+        @Override
+        public void changed(Path path) {
+            generation.incrementAndGet();
+            if (listings != null) {
+                String changed = path.startsWith(root) ? root.relativize(path).toString().replace(File.separatorChar, '/') : "";
+                if (changed.isEmpty()) {
+                    listings.clear();
+                } else {
+                    listings.remove(packageOf(changed));
+                    for (String pkg : listings.keySet()) {
+                        if (pkg.equals(changed) || pkg.startsWith(changed + "/")) listings.remove(pkg);
+                    }
+                }
+            }
+            if (log.isLoggable(Level.FINER))
+                log.finer(toString() + " invalidated by " + path);
+        }
+
+        @Override
+        public sun.misc.Resource get(String name) throws IOException {
+            File file = new File(dir, name);
+            if (!lookup(file, name)) return null;
+
+            long length = file.length();
+            if (StreamingResource.streamed(length))
+                return StreamingResource.fromFile(base, name, file, length);
+
+            byte[] bytes = ClassMonkeyUtils.slurp(new FileInputStream(file), length);
+            return new SimpleResource(base, name, file.toURI(), bytes);
+        }
+
+        @Override
+        public Set<String> packages() {
+            return null;
+        }
+
+        @Override
+        public void addNamesTo(BloomFilter filter) { }
+
         @Override
-        public SimpleResource get(String name) throws IOException {
-            URI found = find(name);
-            if (found == null) return null;
+        public void retain() { }
 
-            File file = new File(find(name));
-            InputStream is = new FileInputStream(file);
-            byte[] bytes = ClassMonkeyUtils.slurp(is);
-            return new SimpleResource(base, name, found, bytes);
+        @Override
+        public void release() {
+            if (watched) {
+                FileWatcher.shared().unsubscribe(this);
+                FileWatcher.shared().unregister(dir, true);
+            }
+            if (listings != null) listings.clear();
         }
 
         @Override
@@ -315,34 +838,137 @@ final public class URLClassPath extends sun.misc.URLClassPath {
         // http://stackoverflow.com/questions/2255950/
         // https://grizzly.java.net/docs/1.9/apidocs/com/sun/grizzly/util/ConcurrentWeakHashMap.html
         private static final ConcurrentMap<ArchiveResourceKey, SoftReference<ArchiveResourceProvider>> cache = new ConcurrentHashMap<>();
-
+        private static final ConcurrentMap<ArchiveResourceKey, FutureTask<ArchiveResourceProvider>> indexing = new ConcurrentHashMap<>();
+
+        // archives that were indexed again because they changed, or
+        // because the garbage collector cleared them
+        private static final Counter stale = new Counter();
+        private static final Counter collected = new Counter();
+
+        // file metadata may be reused for a short while, see FileStats,
+        // or until the FileWatcher says that it has changed.
+        //
+        // the directories are watched for as long as the archive has
+        // users, it unregisters them when it is freed.
         public static ArchiveResourceProvider getOrCreate(URI source) throws IOException {
             File file = new File(source);
-            if (!file.isFile()) return null;
+            FileWatcher watcher = FileWatcher.shared();
+            // must be watching before we look, or we could miss a change
+            File parent = file.getAbsoluteFile().getParentFile();
+            File canonicalParent = null;
+            boolean watched = watcher != null && watcher.register(parent, false);
+            ArchiveResourceProvider provider = null;
+            try {
+                String canonical = FileStats.canonicalPath(file, watched);
+                File canonicalFile = new File(canonical);
+                if (watched && watcher.register(canonicalFile.getParentFile(), false))
+                    canonicalParent = canonicalFile.getParentFile();
+                provider = getOrCreate(source, canonical, FileStats.stat(canonicalFile, canonicalParent != null));
+                return provider;
+            } finally {
+                if (watched) {
+                    if (provider != null) provider.watching(parent);
+                    else watcher.unregister(parent, false);
+                }
+                if (canonicalParent != null) {
+                    if (provider != null) provider.watching(canonicalParent);
+                    else watcher.unregister(canonicalParent, false);
+                }
+            }
+        }
 
-            ArchiveResourceKey key = new ArchiveResourceKey(file);
+        private static ArchiveResourceProvider getOrCreate(URI source, String canonical, FileStats.Stat stat) throws IOException {
+            if (!stat.isFile) return null;
+
+            ArchiveResourceKey key = new ArchiveResourceKey(canonical);
 
             SoftReference<ArchiveResourceProvider> ref = cache.get(key);
             ArchiveResourceProvider cached = ref == null ? null : ref.get();
 
-            if (cached == null) {
-                ArchiveResourceProvider created = new ArchiveResourceProvider(source);
-                SoftReference<ArchiveResourceProvider> race = cache.putIfAbsent(key, new SoftReference<>(created));
-                ArchiveResourceProvider got = race == null ? null : race.get();
-                if (got == null) return created;
-                else return got;
+            if (cached == null || cached.getLastModified() != stat.lastModified || cached.getLength() != stat.length) {
+                String reason = null;
+                if (cached != null) {
+                    stale.increment();
+                    reason = "modified";
+                } else if (ref != null) {
+                    collected.increment();
+                    reason = "collected";
+                }
+                Object event = reason == null ? null : Flight.begin(Flight.ARCHIVE_STALE);
+                ArchiveResourceProvider created = create(source, key, stat);
+                if (event != null) Flight.commit(event, canonical, reason);
+                return created;
             }
 
-            long lastModified = file.lastModified();
-            long length = file.length();
+            return cached;
+        }
 
-            if (cached.getLastModified() != lastModified || cached.getLength() != length) {
-                ArchiveResourceProvider created = new ArchiveResourceProvider(source);
-                cache.replace(key, new SoftReference<>(created));
-                return created;
+        /** The archives that are still reachable, in no particular order. */
+        static List<ArchiveResourceProvider> archives() {
+            List<ArchiveResourceProvider> archives = new ArrayList<>();
+            for (SoftReference<ArchiveResourceProvider> ref : cache.values()) {
+                ArchiveResourceProvider archive = ref.get();
+                if (archive != null) archives.add(archive);
             }
+            return archives;
+        }
 
-            return cached;
+        static long getStaleCount() {
+            return stale.sum();
+        }
+
+        static long getCollectedCount() {
+            return collected.sum();
+        }
+
+        static void resetCounts() {
+            stale.reset();
+            collected.reset();
+            for (ArchiveResourceProvider archive : archives()) {
+                archive.resetCounts();
+            }
+        }
+
+        // threads that need the same archive share a single indexing pass
+        private static ArchiveResourceProvider create(final URI source, final ArchiveResourceKey key, final FileStats.Stat stat) throws IOException {
+            FutureTask<ArchiveResourceProvider> task = new FutureTask<>(new Callable<ArchiveResourceProvider>() {
+                @Override
+                public ArchiveResourceProvider call() throws IOException {
+                    // another thread may have finished between our miss and our task
+                    SoftReference<ArchiveResourceProvider> ref = cache.get(key);
+                    ArchiveResourceProvider cached = ref == null ? null : ref.get();
+                    if (cached != null && cached.getLastModified() == stat.lastModified && cached.getLength() == stat.length)
+                        return cached;
+                    ArchiveResourceProvider created = new ArchiveResourceProvider(source, key, stat, ArchiveResourceProvider.LAZY);
+                    // published before the task is forgotten, so nobody indexes it again
+                    cache.put(key, new SoftReference<>(created));
+                    return created;
+                }
+            });
+            FutureTask<ArchiveResourceProvider> existing = indexing.putIfAbsent(key, task);
+            if (existing == null) {
+                try {
+                    task.run();
+                } finally {
+                    indexing.remove(key, task);
+                }
+            } else {
+                if (log.isLoggable(Level.FINE))
+                    log.fine("waiting for " + key + " to be indexed by another thread");
+                task = existing;
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("while indexing " + key);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw (IOException) cause;
+                if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                if (cause instanceof Error) throw (Error) cause;
+                throw new IllegalStateException(cause);
+            }
         }
 
     }
@@ -355,7 +981,12 @@ final public class URLClassPath extends sun.misc.URLClassPath {
         private final String key;
 
         public ArchiveResourceKey(File file) throws IOException {
-            this.key = file.getCanonicalPath().intern();
+            this(file.getCanonicalPath().intern());
+        }
+
+        // `canonical' must be interned
+        ArchiveResourceKey(String canonical) {
+            this.key = canonical;
         }
 
         @Override
@@ -377,9 +1008,19 @@ final public class URLClassPath extends sun.misc.URLClassPath {
 
     static final class ArchiveResourceProvider implements ResourceProvider {
         private static final Logger log = Logger.getLogger(ArchiveResourceProvider.class.getName());
+
+        // how long to keep cached resources after the last user has
+        // closed, in case the same archive is about to be reused
+        private static final long LINGER = ClassMonkeyOptions.getMillis("release.linger", 0);
+        // index on the first lookup, rather than when added to a classpath
+        static final boolean LAZY = ClassMonkeyOptions.getBoolean("index.lazy", false);
+        private static volatile ScheduledExecutorService releaser;
+        // JVM-wide, of archives that were indexed rather than loaded from the IndexCache
+        private static final Counter indexed = new Counter();
+        private static final Counter indexNanos = new Counter();
         // The nio FileSystem API is reported to keep persistent file
-        // handles, which is no good at all, so drop down to old
-        // fashioned JarFile / ZipFile access.
+        // handles, which is no good at all, so we read the archive
+        // ourselves with short-lived FileChannels, see CentralDirectory.
 
         private final URI source;
         private final File file;
@@ -387,34 +1028,145 @@ final public class URLClassPath extends sun.misc.URLClassPath {
         private final long lastModified;
         private final long length;
 
-        // kept lazy to reduce memory requirements
-        private final ConcurrentMap<String, SimpleResource> cache = new ConcurrentHashMap<>();
-        private final Map<String, ZipEntry> entries = new HashMap<>();
+        // kept lazy to reduce memory requirements, bounded JVM-wide
+        private final ResourceCache.Segment cache = ResourceCache.shared().segment();
+        // the number of open URLClassPaths using this archive
+        private final AtomicInteger users = new AtomicInteger();
+        private final ArchiveResourceKey key;
+        // zero if there is no IndexCache
+        private final long checksum;
+
+        // if lazy, all null until the first lookup unless there is a
+        // hint, and always written in this order
+        private volatile IndexCache.Hint hint;
+        private volatile Set<String> packages;
+        private volatile BloomFilter filter;
+        private volatile ArchiveIndex index;
+        // how long it took to build or load `index'
+        private volatile long indexTime;
+
+        // lazy URLClassPaths that were given this before it had
+        // packages, to be told when it does. Guarded by `this'.
+        private List<URLClassPath> waiting;
+        // registered with the FileWatcher for this, until it is freed.
+        // Guarded by `this'.
+        private final Set<File> watching = new HashSet<>();
+
+        private final Counter lookups = new Counter();
+        private final Counter hits = new Counter();
 
         public ArchiveResourceProvider(URI source) throws IOException {
+            this(source, new ArchiveResourceKey(new File(source)), FileStats.stat(new File(source)), LAZY);
+        }
+
+        // `stat' must have been taken before `key' is indexed
+        ArchiveResourceProvider(URI source, ArchiveResourceKey key, FileStats.Stat stat, boolean lazy) throws IOException {
             this.source = source;
+            this.key = key;
 
-            this.file = new File(source).getCanonicalFile();
-            this.lastModified = file.lastModified();
-            this.length = file.length();
+            this.file = new File(key.toString());
+            this.lastModified = stat.lastModified;
+            this.length = stat.length;
 
             this.path = "jar:file:///" + file.getPath().replace("\\", "/").replaceAll("^/*", "") + "!/";
 
-            try (
-                 ZipFile zip = new ZipFile(file);
-            ) {
-                for (ZipEntry entry : Collections.list(zip.entries())) {
-                    String name = entry.getName();
-                    if (log.isLoggable(Level.FINEST))
-                        log.finest(toString() + " += '" + name + "'");
-                    entries.put(name, entry);
+            IndexCache indexes = IndexCache.shared();
+            this.checksum = indexes == null ? 0 : CentralDirectory.checksum(file);
+
+            if (!lazy) {
+                try {
+                    index();
+                } catch (ZipException e) {
+                    throw new IllegalArgumentException(file + " is a bad archive", e.getCause() == null ? e : e.getCause());
+                }
+            } else if (indexes != null) {
+                IndexCache.Hint hint = indexes.loadHint(key.toString(), length, lastModified, checksum);
+                if (hint != null) {
+                    BloomFilter filter = new BloomFilter(hint.hashes.length);
+                    for (int hash : hint.hashes) {
+                        filter.add(hash);
+                    }
+                    this.hint = hint;
+                    this.packages = hint.packages;
+                    this.filter = filter;
                 }
-            } catch (RuntimeException e) {
-                throw new IllegalArgumentException(file + " is a bad archive", e);
             }
+        }
+
+        /**
+         * Calls URLClassPath#indexed once the packages are known, unless
+         * the classpath is forgotten first.
+         *
+         * @return false if they are already known.
+         */
+        synchronized boolean whenIndexed(URLClassPath classpath) {
+            if (packages != null) return false;
+            if (waiting == null) waiting = new ArrayList<>(2);
+            waiting.add(classpath);
+            return true;
+        }
 
+        synchronized void forget(URLClassPath classpath) {
+            if (waiting != null) waiting.remove(classpath);
+        }
+
+        // the index, built (or loaded from the IndexCache) when first needed
+        private ArchiveIndex index() throws IOException {
+            ArchiveIndex index = this.index;
+            if (index != null) return index;
+            List<URLClassPath> waiting;
+            synchronized (this) {
+                if (this.index != null) return this.index;
+                Object event = Flight.begin(Flight.ARCHIVE_INDEX);
+                long start = System.nanoTime();
+                IndexCache indexes = IndexCache.shared();
+                index = indexes == null ? null : indexes.load(key.toString(), length, lastModified, checksum);
+                boolean cached = index != null;
+                Set<String> packages = this.packages;
+                if (index == null) {
+                    try {
+                        ArchiveIndex.Builder builder = new ArchiveIndex.Builder();
+                        CentralDirectory.read(file, builder);
+                        index = builder.build();
+                    } catch (RuntimeException e) {
+                        ZipException bad = new ZipException(file + " is a bad archive");
+                        bad.initCause(e);
+                        throw bad;
+                    }
+                    if (packages == null) packages = index.packages();
+                    if (indexes != null) indexes.store(key.toString(), length, lastModified, checksum, index, packages);
+                    indexed.increment();
+                    indexNanos.add(System.nanoTime() - start);
+                }
+                if (log.isLoggable(Level.FINEST)) {
+                    for (int i = 0; i < index.size(); i++) {
+                        log.finest(toString() + " += '" + index.name(i) + "'");
+                    }
+                }
+                if (this.packages == null) this.packages = packages == null ? index.packages() : packages;
+                waiting = this.waiting;
+                this.waiting = null;
+                if (this.filter == null) {
+                    BloomFilter filter = new BloomFilter(index.size());
+                    for (int i = 0; i < index.size(); i++) {
+                        filter.add(index.hash(i));
+                    }
+                    this.filter = filter;
+                }
+                this.indexTime = System.nanoTime() - start;
+                this.index = index;
+                this.hint = null;
+                if (event != null) Flight.commit(event, file.getPath(), index.size(), cached);
+            }
             if (log.isLoggable(Level.FINER))
-                log.finer(toString());
+                log.finer(toString() + " indexed " + index.size() + " entries in " + index.footprint() + " bytes");
+            // outside of the lock, the classpaths take their own
+            if (waiting != null) {
+                for (URLClassPath classpath : waiting) {
+                    classpath.indexed(this);
+                }
+            }
+            return index;
         }
 
         public long getLastModified() {
@@ -425,12 +1177,142 @@ final public class URLClassPath extends sun.misc.URLClassPath {
             return length;
         }
 
+        File getFile() {
+            return file;
+        }
+
+        /** Zero if it has not been indexed yet. */
+        int getEntryCount() {
+            ArchiveIndex index = this.index;
+            return index == null ? 0 : index.size();
+        }
+
+        /** Nanoseconds to index, or load the index of, this archive. */
+        long getIndexTime() {
+            return indexTime;
+        }
+
+        int getUserCount() {
+            return users.get();
+        }
+
+        /** Lookups that reached this archive. */
+        long getLookupCount() {
+            return lookups.sum();
+        }
+
+        long getHitCount() {
+            return hits.sum();
+        }
+
+        ResourceCache.Segment getCache() {
+            return cache;
+        }
+
+        void resetCounts() {
+            lookups.reset();
+            hits.reset();
+        }
+
+        static long getIndexedCount() {
+            return indexed.sum();
+        }
+
+        static long getIndexNanos() {
+            return indexNanos.sum();
+        }
+
+        static void resetIndexCounts() {
+            indexed.reset();
+            indexNanos.reset();
+        }
+
+        @Override
+        public Set<String> packages() {
+            return packages;
+        }
+
+        @Override
+        public void addNamesTo(BloomFilter filter) {
+            IndexCache.Hint hint = this.hint;
+            ArchiveIndex index = this.index;
+            if (index != null) {
+                for (int i = 0; i < index.size(); i++) {
+                    filter.add(index.hash(i));
+                }
+            } else if (hint != null) {
+                for (int hash : hint.hashes) {
+                    filter.add(hash);
+                }
+            }
+        }
+
+        @Override
+        public void retain() {
+            users.incrementAndGet();
+        }
+
+        @Override
+        public void release() {
+            if (users.decrementAndGet() > 0) return;
+            if (LINGER <= 0) {
+                free();
+                return;
+            }
+            releaser().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // unless it was reused in the meantime
+                    if (users.get() <= 0) free();
+                }
+            }, LINGER, TimeUnit.MILLISECONDS);
+        }
+
+        private void free() {
+            if (log.isLoggable(Level.FINE))
+                log.fine(toString() + " releasing " + cache.size() + " cached resources");
+            cache.clear();
+            synchronized (this) {
+                for (File dir : watching) {
+                    FileWatcher.shared().unregister(dir, false);
+                }
+                watching.clear();
+            }
+        }
+
+        /** Take over a FileWatcher registration of `dir', unless this has one. */
+        synchronized void watching(File dir) {
+            if (!watching.add(dir)) FileWatcher.shared().unregister(dir, false);
+        }
+
+        private static ScheduledExecutorService releaser() {
+            if (releaser == null) {
+                synchronized (ArchiveResourceProvider.class) {
+                    if (releaser == null) {
+                        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable r) {
+                                return daemon(r, "class-monkey-release");
+                            }
+                        });
+                        executor.setRemoveOnCancelPolicy(true);
+                        releaser = executor;
+                    }
+                }
+            }
+            return releaser;
+        }
+
         @Override
         public URI find(String name) throws IOException {
             if (log.isLoggable(Level.FINEST))
                 log.finest(toString() + ".find(" + name + ")");
-            name = name.replaceAll("^/+", "");
-            if (!entries.containsKey(name)) return null;
+            lookups.increment();
+            BloomFilter filter = this.filter;
+            if (filter != null && !filter.mightContain(name)) return null;
+            if (index().indexOf(name) < 0) return null;
+            hits.increment();
+            name = stripLeadingSlashes(name);
             try {
                 URI found = new URI(path + name);
                 if (log.isLoggable(Level.FINE))
@@ -442,26 +1324,102 @@ final public class URLClassPath extends sun.misc.URLClassPath {
         }
 
         @Override
-        public SimpleResource get(String name) throws IOException {
+        public sun.misc.Resource get(String name) throws IOException {
             if (log.isLoggable(Level.FINEST))
                 log.finest(toString() + ".get(" + name + ")");
-            name = name.replaceAll("^/+", "");
-
-            ZipEntry entry = entries.get(name);
-            if (entry == null) return null;
+            lookups.increment();
+            BloomFilter filter = this.filter;
+            if (filter != null && !filter.mightContain(name)) return null;
+            ArchiveIndex index = index();
+            int i = index.indexOf(name);
+            if (i < 0) return null;
+            hits.increment();
+            name = stripLeadingSlashes(name);
+
+            // read on demand, never cached
+            if (index.isOversized(i) || StreamingResource.streamed(index.size(i)))
+                return StreamingResource.fromArchive(source, name, URI.create(path + name), file,
+                                                     index.headerOffset(i), index.method(i), index.compressedSize(i), index.size(i), index.crc(i));
 
             SimpleResource cached = cache.get(name);
             if (cached != null) return cached;
 
-            try (ZipFile zip = new ZipFile(file)) {
-                URI loc = URI.create(path + name);
-                InputStream in = zip.getInputStream(entry);
-                byte[] bytes = slurp(in);
-                SimpleResource created = new SimpleResource(source, name, loc, bytes);
-                SimpleResource existing = cache.putIfAbsent(name, created);
-                if (existing != null) return existing;
-                else return created;
+            Object event = Flight.begin(Flight.RESOURCE_READ);
+            SimpleResource created;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                created = read(channel, index, i, name);
+            }
+            // where it is inflated, if the CachePolicy holds it inflated
+            long admitted = event == null ? 0 : System.nanoTime();
+            SimpleResource read = cache.putIfAbsent(name, created, false);
+            if (event != null)
+                Flight.commit(event, file.getPath(), name, (int) index.compressedSize(i), (int) index.size(i), System.nanoTime() - admitted);
+            return read;
+        }
+
+        boolean contains(String name) throws IOException {
+            BloomFilter filter = this.filter;
+            if (filter != null && !filter.mightContain(name)) return false;
+            return index().indexOf(name) >= 0;
+        }
+
+        /** The names of every entry, e.g. for matching against a pattern. */
+        List<String> names() throws IOException {
+            ArchiveIndex index = index();
+            List<String> names = new ArrayList<>(index.size());
+            for (int i = 0; i < index.size(); i++) {
+                names.add(index.name(i));
+            }
+            return names;
+        }
+
+        /**
+         * Read the named entries into the cache, unless they are already
+         * there or are too big to be cached, in archive order with a
+         * single FileChannel.
+         *
+         * @return the number of entries that were read.
+         */
+        int prefetch(Collection<String> names) throws IOException {
+            final ArchiveIndex index = index();
+            List<Integer> entries = new ArrayList<>(names.size());
+            for (String name : names) {
+                int i = index.indexOf(name);
+                if (i >= 0 && !index.isOversized(i) && !StreamingResource.streamed(index.size(i)) && !cache.contains(index.name(i))) entries.add(i);
+            }
+            if (entries.isEmpty()) return 0;
+            Collections.sort(entries, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(index.headerOffset(a), index.headerOffset(b));
+                }
+            });
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                for (int i : entries) {
+                    cache.putIfAbsent(index.name(i), read(channel, index, i, index.name(i)), true);
+                }
+            }
+            return entries.size();
+        }
+
+        // read entry `i' (called `name', not streamed), for the cache to admit if the CachePolicy allows
+        private SimpleResource read(FileChannel channel, ArchiveIndex index, int i, String name) throws IOException {
+            CentralDirectory.RawEntry raw = CentralDirectory.readRaw(channel, index.headerOffset(i), index.nameLength(i), (int) index.compressedSize(i));
+
+            URI loc = URI.create(path + name);
+            SimpleResource created;
+            switch (index.method(i)) {
+            case CentralDirectory.STORED:
+                created = SimpleResource.fromStored(source, name, loc, raw.buf, raw.offset, raw.length, index.size(i), index.crc(i));
+                break;
+            case CentralDirectory.DEFLATED:
+                // held as it was stored, inflated on demand
+                created = SimpleResource.fromDeflated(source, name, loc, raw.buf, raw.offset, raw.length, (int) index.size(i), index.crc(i));
+                break;
+            default:
+                throw new ZipException(file + " uses unsupported compression method " + index.method(i) + " for " + name);
             }
+            return created;
         }
 
         @Override
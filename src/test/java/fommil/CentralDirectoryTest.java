@@ -0,0 +1,152 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.*;
+import org.junit.*;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static fommil.ClassMonkeyUtils.*;
+
+public class CentralDirectoryTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    private static Object index(File file) {
+        Object builder = Internals.create("ArchiveIndex$Builder");
+        Internals.callStatic("CentralDirectory", "read", file, builder);
+        return Internals.call(builder, "build");
+    }
+
+    // every entry read from its local header, as ArchiveResourceProvider does
+    private static void assertMatchesZipFile(File file) throws IOException {
+        Object index = index(file);
+        try (ZipFile zip = new ZipFile(file);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            Assert.assertEquals(zip.size(), Internals.call(index, "size"));
+            for (int i = 0; i < zip.size(); i++) {
+                String name = (String) Internals.call(index, "name", i);
+                ZipEntry entry = zip.getEntry(name);
+                Assert.assertNotNull(name, entry);
+                long header = (Long) Internals.call(index, "headerOffset", i);
+                int compressed = (int) (long) (Long) Internals.call(index, "compressedSize", i);
+                int size = (int) (long) (Long) Internals.call(index, "size", i);
+                Assert.assertEquals(name, entry.getSize(), size);
+
+                Object raw = Internals.callStatic("CentralDirectory", "readRaw", channel, header, Internals.call(index, "nameLength", i), compressed);
+                byte[] buf = (byte[]) Internals.get(raw, "buf");
+                int offset = (Integer) Internals.get(raw, "offset");
+                Assert.assertEquals(name, compressed, Internals.get(raw, "length"));
+                byte[] data = entry.getMethod() == ZipEntry.STORED
+                    ? Arrays.copyOfRange(buf, offset, offset + compressed)
+                    : enflateRaw(buf, offset, compressed, size);
+                try (InputStream in = zip.getInputStream(entry)) {
+                    Assert.assertArrayEquals(name, slurp(in), data);
+                }
+                // the same place as the streamed reads start from
+                long data0 = (Long) Internals.callStatic("CentralDirectory", "dataOffset", channel, header);
+                Assert.assertArrayEquals(name, Arrays.copyOfRange(buf, offset, offset + Math.min(compressed, 16)),
+                                         Arrays.copyOf(readFully(channel, data0, Math.min(compressed, 16)), Math.min(compressed, 16)));
+            }
+        }
+    }
+
+    private static byte[] readFully(FileChannel channel, long position, int length) {
+        return ((java.nio.ByteBuffer) Internals.callStatic("CentralDirectory", "readFully", channel, position, length)).array();
+    }
+
+    private static File archive(String prefix, int count, int extra) throws IOException {
+        File jar = File.createTempFile("CentralDirectoryTest", ".jar");
+        jar.deleteOnExit();
+        try (OutputStream file = new FileOutputStream(jar)) {
+            file.write(prefix.getBytes(StandardCharsets.UTF_8));
+            try (ZipOutputStream out = new ZipOutputStream(file)) {
+                Random random = new Random(count);
+                for (int i = 0; i < count; i++) {
+                    byte[] content = new byte[i % 7 == 0 ? 0 : random.nextInt(2000)];
+                    for (int j = 0; j < content.length; j++) {
+                        content[j] = (byte) random.nextInt(8);
+                    }
+                    ZipEntry entry = new ZipEntry("p" + (i % 10) + "/E" + i + ".bin");
+                    if (extra > 0) {
+                        // an unknown extra field, in the local header too
+                        byte[] field = new byte[4 + extra];
+                        field[0] = (byte) 0xfe;
+                        field[1] = (byte) 0xca;
+                        field[2] = (byte) extra;
+                        field[3] = (byte) (extra >> 8);
+                        entry.setExtra(field);
+                    }
+                    if (i % 3 == 0) {
+                        entry.setMethod(ZipEntry.STORED);
+                        entry.setSize(content.length);
+                        CRC32 crc = new CRC32();
+                        crc.update(content);
+                        entry.setCrc(crc.getValue());
+                    }
+                    out.putNextEntry(entry);
+                    out.write(content);
+                }
+            }
+        }
+        return jar;
+    }
+
+    @Test
+    public void plain() throws Exception {
+        assertMatchesZipFile(archive("", 100, 0));
+    }
+
+    // the data doesn't start where the first read guessed it would
+    @Test
+    public void localExtraField() throws Exception {
+        assertMatchesZipFile(archive("", 100, 1000));
+    }
+
+    // offsets in the central directory are relative to the archive
+    @Test
+    public void prefixed() throws Exception {
+        assertMatchesZipFile(archive("#!/bin/sh\nexec java -jar $0 \"$@\"\n", 100, 0));
+        assertMatchesZipFile(archive(new String(new char[100000]).replace('\0', '#'), 10, 100));
+    }
+
+    // more than 64k entries forces the zip64 end of central directory
+    @Test
+    public void zip64() throws Exception {
+        assertMatchesZipFile(archive("", 66000, 0));
+    }
+
+    @Test
+    public void badLocalHeader() throws Exception {
+        File jar = archive("", 1, 0);
+        try (FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.READ)) {
+            for (long header : new long[]{ 1, jar.length() - 10, jar.length() + 100 }) {
+                try {
+                    Internals.callStatic("CentralDirectory", "readRaw", channel, header, 10, 10);
+                    Assert.fail("read at " + header);
+                } catch (Exception expected) {
+                    // thrown unchecked by Internals
+                    Assert.assertTrue(expected.toString(), expected instanceof ZipException);
+                }
+            }
+        }
+    }
+
+    @Test(expected = ZipException.class)
+    public void notAnArchive() throws Exception {
+        File file = File.createTempFile("CentralDirectoryTest", ".jar");
+        file.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[1024]);
+        }
+        index(file);
+    }
+}
@@ -0,0 +1,167 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.util.Map;
+import org.junit.*;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+public class ClassMonkeyOptionsTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    // not read by anything else, so safe to set
+    private static final String KEY = "test.option";
+
+    @After
+    public void after() {
+        System.clearProperty("class-monkey." + KEY);
+        System.clearProperty("class-monkey.profile");
+        // as the agent is started by the tests
+        configure(null);
+    }
+
+    private static void configure(String args) {
+        Internals.callStatic("ClassMonkeyOptions", "configure", args);
+    }
+
+    private static String get(String key) {
+        return (String) Internals.callStatic("ClassMonkeyOptions", "get", key, null);
+    }
+
+    private static long bytes(String value) {
+        System.setProperty("class-monkey." + KEY, value);
+        return (Long) Internals.callStatic("ClassMonkeyOptions", "getBytes", KEY, -1L);
+    }
+
+    private static long millis(String value) {
+        System.setProperty("class-monkey." + KEY, value);
+        return (Long) Internals.callStatic("ClassMonkeyOptions", "getMillis", KEY, -1L);
+    }
+
+    private static boolean bool(String value, boolean fallback) {
+        if (value == null) System.clearProperty("class-monkey." + KEY);
+        else System.setProperty("class-monkey." + KEY, value);
+        return (Boolean) Internals.callStatic("ClassMonkeyOptions", "getBoolean", KEY, fallback);
+    }
+
+    private static int integer(String value) {
+        System.setProperty("class-monkey." + KEY, value);
+        return (Integer) Internals.callStatic("ClassMonkeyOptions", "getInt", KEY, -1);
+    }
+
+    @Test
+    public void agentArguments() throws Exception {
+        configure("a=1, b = two ,,class-monkey.c=3,d=x=y,e=,novalue,=orphan");
+        Assert.assertEquals("1", get("a"));
+        Assert.assertEquals("two", get("b"));
+        // the prefix is optional
+        Assert.assertEquals("3", get("c"));
+        Assert.assertNull(get("class-monkey.c"));
+        Assert.assertEquals("x=y", get("d"));
+        Assert.assertEquals("", get("e"));
+        Assert.assertNull(get("novalue"));
+        Assert.assertNull(get(""));
+
+        // replaced, not merged
+        configure("b=three");
+        Assert.assertNull(get("a"));
+        Assert.assertEquals("three", get("b"));
+        configure("");
+        Assert.assertNull(get("b"));
+    }
+
+    @Test
+    public void precedence() throws Exception {
+        Assert.assertNull(get("cache.budget"));
+        Assert.assertEquals("fallback", Internals.callStatic("ClassMonkeyOptions", "get", "cache.budget", "fallback"));
+
+        configure("profile=low-memory");
+        Assert.assertEquals("8m", get("cache.budget"));
+        configure("profile=low-memory,cache.budget=16m");
+        Assert.assertEquals("16m", get("cache.budget"));
+        System.setProperty("class-monkey.cache.budget", "32m");
+        try {
+            Assert.assertEquals("32m", get("cache.budget"));
+        } finally {
+            System.clearProperty("class-monkey.cache.budget");
+        }
+        Assert.assertEquals("16m", get("cache.budget"));
+    }
+
+    @Test
+    public void profiles() throws Exception {
+        Map<?, ?> profiles = (Map<?, ?>) Internals.getStatic("ClassMonkeyOptions", "PROFILES");
+        for (Object name : profiles.keySet()) {
+            configure("profile=" + name);
+            for (Map.Entry<?, ?> option : ((Map<?, ?>) profiles.get(name)).entrySet()) {
+                Assert.assertEquals(name + " " + option.getKey(), option.getValue(), get((String) option.getKey()));
+            }
+        }
+
+        configure("profile=Throughput");
+        Assert.assertEquals("lz4", get("cache.codec"));
+
+        // a system property chooses the profile too, over the arguments
+        System.setProperty("class-monkey.profile", "fast-startup");
+        configure("profile=throughput");
+        Assert.assertEquals("1s", get("stat.ttl"));
+        Assert.assertNull(get("cache.codec"));
+        System.clearProperty("class-monkey.profile");
+
+        configure("profile=no-such-profile,a=1");
+        Assert.assertEquals("1", get("a"));
+        Assert.assertNull(get("cache.budget"));
+        Assert.assertNull(get("index.lazy"));
+    }
+
+    @Test
+    public void sizes() throws Exception {
+        Assert.assertEquals(0L, bytes("0"));
+        Assert.assertEquals(100L, bytes("100"));
+        Assert.assertEquals(16L << 10, bytes("16k"));
+        Assert.assertEquals(64L << 20, bytes("64M"));
+        Assert.assertEquals(2L << 30, bytes(" 2g "));
+        for (String bad : new String[]{ "", "k", "1.5m", "-1", "1t", "16 kb", "99999999999g", "9223372036854775808" }) {
+            Assert.assertEquals(bad, -1L, bytes(bad));
+        }
+    }
+
+    @Test
+    public void durations() throws Exception {
+        Assert.assertEquals(250L, millis("250"));
+        Assert.assertEquals(250L, millis("250ms"));
+        Assert.assertEquals(2000L, millis("2s"));
+        Assert.assertEquals(120000L, millis("2M"));
+        for (String bad : new String[]{ "", "ms", "s", "1h", "-5s", "0.5s", "1 sec", "999999999999999999m" }) {
+            Assert.assertEquals(bad, -1L, millis(bad));
+        }
+    }
+
+    @Test
+    public void booleans() throws Exception {
+        for (String yes : new String[]{ "true", "TRUE", "yes", "on", " On " }) {
+            Assert.assertTrue(yes, bool(yes, false));
+        }
+        for (String no : new String[]{ "false", "no", "OFF" }) {
+            Assert.assertFalse(no, bool(no, true));
+        }
+        for (String bad : new String[]{ "", "1", "y", "enabled" }) {
+            Assert.assertTrue(bad, bool(bad, true));
+            Assert.assertFalse(bad, bool(bad, false));
+        }
+        Assert.assertTrue(bool(null, true));
+    }
+
+    @Test
+    public void integers() throws Exception {
+        Assert.assertEquals(4, integer("4"));
+        Assert.assertEquals(4, integer(" 4 "));
+        Assert.assertEquals(-1, integer("four"));
+        Assert.assertEquals(-1, integer("4k"));
+        Assert.assertEquals(-1, integer("99999999999"));
+    }
+}
@@ -2,8 +2,14 @@
 // License: http://www.gnu.org/software/classpath/license.html
 package fommil;
 
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.net.URI;
 import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
 import org.junit.*;
 import org.junit.runner.RunWith;
 import org.slf4j.bridge.SLF4JBridgeHandler;
@@ -24,4 +30,78 @@ public class ClassMonkeyUtilsTest {
         URI expected = URI.create("jar:file:///C:/a/b/d.jar!/E.class");
         Assert.assertEquals(expected, got);
     }
+
+    // wrong size hints are only slower
+    @Test
+    public void codecRoundTrip() throws Exception {
+        byte[] data = new byte[100000];
+        Random random = new Random(0);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) random.nextInt(16);
+        }
+        for (int length : new int[]{ 0, 1, 1000, data.length }) {
+            byte[] expected = Arrays.copyOf(data, length);
+            byte[] raw = deflateRaw(data, 0, length);
+            Assert.assertArrayEquals(expected, enflateRaw(raw, 0, raw.length, length));
+            byte[] zlib = deflate(data, 0, length);
+            Assert.assertArrayEquals(expected, enflate(zlib));
+            for (int hint : new int[]{ -1, 0, length / 2, length, 2 * length }) {
+                Assert.assertArrayEquals(expected, enflate(zlib, hint));
+                Assert.assertArrayEquals(expected, slurp(new ByteArrayInputStream(expected), hint));
+            }
+        }
+    }
+
+    /**
+     * Loading a class from a directory reads the file, holds it
+     * deflated and inflates it for defineClass, which shouldn't
+     * allocate much more than those three arrays.
+     */
+    @Test
+    public void allocationPerClassLoad() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(allocations.isThreadAllocatedMemorySupported() && allocations.isThreadAllocatedMemoryEnabled());
+
+        File file = File.createTempFile("ClassMonkeyUtilsTest", ".class");
+        file.deleteOnExit();
+        Files.write(file.toPath(), slurp(getClass().getResourceAsStream("ClassMonkeyUtilsTest.class")));
+        int length = (int) file.length();
+        int deflatedLength = deflateRaw(Files.readAllBytes(file.toPath()), 0, length).length;
+
+        long thread = Thread.currentThread().getId();
+        long allocated = 0;
+        int loads = 2000;
+        // the first half warms up
+        for (int i = 0; i < 2 * loads; i++) {
+            if (i == loads) allocated = allocations.getThreadAllocatedBytes(thread);
+            byte[] bytes = slurp(new FileInputStream(file), file.length());
+            byte[] deflated = deflateRaw(bytes, 0, bytes.length);
+            Assert.assertEquals(length, enflateRaw(deflated, 0, deflated.length, length).length);
+        }
+        long perLoad = (allocations.getThreadAllocatedBytes(thread) - allocated) / loads;
+        Assert.assertTrue("allocated " + perLoad + " bytes per class load of " + length + " bytes (" + deflatedLength + " deflated)",
+                          perLoad < 2 * length + deflatedLength + 2048);
+    }
+
+    // created lazily by whichever thread needs it first
+    @Test
+    public void daemon() throws Exception {
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        ClassLoader app = new java.net.URLClassLoader(new java.net.URL[0]);
+        Thread.currentThread().setContextClassLoader(app);
+        try {
+            Runnable task = new Runnable() {
+                @Override
+                public void run() { }
+            };
+            Thread thread = (Thread) Internals.callStatic("ClassMonkeyUtils", "daemon", task, "ClassMonkeyUtilsTest");
+            Assert.assertTrue(thread.isDaemon());
+            Assert.assertEquals("ClassMonkeyUtilsTest", thread.getName());
+            Assert.assertNull(thread.getContextClassLoader());
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+    }
 }
@@ -0,0 +1,122 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.*;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Future;
+import java.util.zip.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+public class ClassTraceTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final String CLASSPATH = "file:/a.jar\nfile:/b.jar";
+
+    private Object trace() {
+        return Internals.callStatic("ClassTrace", "create", tmp.getRoot().getPath());
+    }
+
+    private static Object recording(Object trace, String classpath, String... names) {
+        Object recording = Internals.call(trace, "recording", classpath);
+        for (String name : names) {
+            Internals.call(recording, "record", name);
+        }
+        return recording;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> load(Object trace, String classpath) {
+        return (List<String>) Internals.call(trace, "load", classpath);
+    }
+
+    @Test
+    public void record() throws Exception {
+        Object recording = recording(trace(), CLASSPATH, "a/A.class", "b/B.class", "a/A.class", "c.properties");
+        Assert.assertEquals(Arrays.asList("a/A.class", "b/B.class", "c.properties"), Internals.call(recording, "names"));
+    }
+
+    @Test
+    public void store() throws Exception {
+        Object trace = trace();
+        Object recording = recording(trace, CLASSPATH, "a/A.class", "b/B.class");
+        Internals.call(trace, "store", recording);
+        // nothing new
+        Internals.call(trace, "store", recording);
+        Assert.assertEquals(1L, Internals.call(trace, "getStoredCount"));
+
+        // as the next JVM would see it
+        Object next = trace();
+        Assert.assertEquals(Arrays.asList("a/A.class", "b/B.class"), load(next, CLASSPATH));
+        Assert.assertNull(load(next, "file:/a.jar"));
+        Assert.assertEquals(1L, Internals.call(next, "getLoadedCount"));
+    }
+
+    @Test
+    public void corrupt() throws Exception {
+        Object trace = trace();
+        Internals.call(trace, "store", recording(trace, CLASSPATH, "a/A.class"));
+        File[] traced = tmp.getRoot().listFiles();
+        Assert.assertEquals(1, traced.length);
+        byte[] bytes = Files.readAllBytes(traced[0].toPath());
+        bytes[bytes.length / 2] ^= 1;
+        Files.write(traced[0].toPath(), bytes);
+
+        Assert.assertNull(load(trace(), CLASSPATH));
+    }
+
+    // a JVM that keeps creating classpaths doesn't keep their recordings
+    @Test
+    public void close() throws Exception {
+        Object trace = trace();
+        Object first = recording(trace, CLASSPATH, "a/A.class");
+        Object second = recording(trace, CLASSPATH);
+        Assert.assertSame(first, second);
+
+        Internals.call(trace, "close", first);
+        Assert.assertEquals(1, ((Map<?, ?>) Internals.get(trace, "recordings")).size());
+        Internals.call(trace, "close", second);
+        Assert.assertTrue(((Map<?, ?>) Internals.get(trace, "recordings")).isEmpty());
+        Assert.assertEquals(1L, Internals.call(trace, "getStoredCount"));
+
+        Assert.assertNotSame(first, recording(trace, CLASSPATH));
+        Assert.assertEquals(Arrays.asList("a/A.class"), load(trace, CLASSPATH));
+    }
+
+    @Test
+    public void replay() throws Exception {
+        File jar = tmp.newFile("replay.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (String name : Arrays.asList("org/example/First.class", "org/example/Second.class", "org/example/Unused.class")) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        Object trace = trace();
+        // including a name that has since gone
+        Internals.call(trace, "store", recording(trace, CLASSPATH, "org/example/Second.class", "org/example/Gone.class", "org/example/First.class"));
+
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        long prefetched = (Long) Internals.callStatic("Prefetcher", "getPrefetchedCount");
+        ((Future<?>) Internals.callStatic("Prefetcher", "replay", ucp, trace, CLASSPATH)).get();
+        Assert.assertEquals(2L, (Long) Internals.callStatic("Prefetcher", "getPrefetchedCount") - prefetched);
+
+        Object cache = Internals.call(Internals.call(ucp, "archiveOf", "org/example/First.class"), "getCache");
+        Assert.assertTrue((Boolean) Internals.call(cache, "contains", "org/example/First.class"));
+        Assert.assertTrue((Boolean) Internals.call(cache, "contains", "org/example/Second.class"));
+        Assert.assertFalse((Boolean) Internals.call(cache, "contains", "org/example/Unused.class"));
+        ucp.closeLoaders();
+    }
+}
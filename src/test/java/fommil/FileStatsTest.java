@@ -0,0 +1,127 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.Map;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+public class FileStatsTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private long ttl;
+
+    @Before
+    public void before() {
+        ttl = (Long) Internals.callStatic("FileStats", "setTtl", 0L);
+    }
+
+    @After
+    public void after() {
+        Internals.callStatic("FileStats", "setTtl", ttl);
+        Internals.callStatic("FileStats", "clear");
+    }
+
+    private static long length(File file, boolean watched) {
+        return (Long) Internals.get(Internals.callStatic("FileStats", "stat", file, watched), "length");
+    }
+
+    private static void write(File file, int length) throws IOException {
+        Files.write(file.toPath(), new byte[length]);
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        File file = tmp.newFile();
+        write(file, 10);
+        Assert.assertEquals(10L, length(file, false));
+        write(file, 20);
+        Assert.assertEquals(20L, length(file, false));
+
+        Object missing = Internals.callStatic("FileStats", "stat", new File(tmp.getRoot(), "missing"), false);
+        Assert.assertFalse((Boolean) Internals.get(missing, "isFile"));
+        Assert.assertFalse((Boolean) Internals.get(missing, "isDirectory"));
+        Object dir = Internals.callStatic("FileStats", "stat", tmp.getRoot(), false);
+        Assert.assertTrue((Boolean) Internals.get(dir, "isDirectory"));
+    }
+
+    @Test
+    public void ttl() throws Exception {
+        Internals.callStatic("FileStats", "setTtl", 500L);
+        File file = tmp.newFile();
+        write(file, 10);
+        Object stat = Internals.callStatic("FileStats", "stat", file, false);
+        write(file, 20);
+        // not noticed until it expires
+        Assert.assertSame(stat, Internals.callStatic("FileStats", "stat", file, false));
+        Assert.assertEquals(10L, length(file, false));
+        Thread.sleep(600);
+        Assert.assertEquals(20L, length(file, false));
+    }
+
+    // watched entries are kept until they are invalidated, however long that is
+    @Test
+    public void watched() throws Exception {
+        File file = tmp.newFile();
+        write(file, 10);
+        Assert.assertEquals(10L, length(file, true));
+        write(file, 20);
+        Assert.assertEquals(10L, length(file, true));
+        Assert.assertEquals(20L, length(file, false));
+
+        Internals.callStatic("FileStats", "invalidate", file);
+        Assert.assertEquals(20L, length(file, true));
+    }
+
+    @Test
+    public void invalidateTree() throws Exception {
+        Internals.callStatic("FileStats", "setTtl", 60000L);
+        File dir = tmp.newFolder("dir");
+        // shares a prefix, but isn't beneath it
+        File sibling = tmp.newFolder("dir2");
+        File inside = new File(dir, "inside.jar");
+        File outside = new File(sibling, "outside.jar");
+        write(inside, 10);
+        write(outside, 10);
+        Assert.assertEquals(10L, length(inside, false));
+        Assert.assertEquals(10L, length(outside, false));
+        write(inside, 20);
+        write(outside, 20);
+
+        Internals.callStatic("FileStats", "invalidateTree", dir);
+        Assert.assertEquals(20L, length(inside, false));
+        Assert.assertEquals(10L, length(outside, false));
+
+        Internals.callStatic("FileStats", "clear");
+        Assert.assertEquals(20L, length(outside, false));
+    }
+
+    // memoised while enabled, the JDK has its own cache so only the memo can be seen
+    @Test
+    public void canonicalPath() throws Exception {
+        File file = new File(tmp.newFolder("dir"), "../file.jar");
+        write(file, 10);
+        Map<?, ?> memo = (Map<?, ?>) Internals.getStatic("FileStats", "canonical");
+
+        String resolved = (String) Internals.callStatic("FileStats", "canonicalPath", file, false);
+        Assert.assertEquals(file.getCanonicalPath(), resolved);
+        Assert.assertSame(resolved, resolved.intern());
+        Assert.assertFalse(memo.containsKey(file.getAbsolutePath()));
+
+        Assert.assertSame(resolved, Internals.callStatic("FileStats", "canonicalPath", file, true));
+        Assert.assertSame(resolved, memo.get(file.getAbsolutePath()));
+
+        Internals.callStatic("FileStats", "invalidate", file);
+        Assert.assertFalse(memo.containsKey(file.getAbsolutePath()));
+    }
+}
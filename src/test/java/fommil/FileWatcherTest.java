@@ -0,0 +1,166 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+public class FileWatcherTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    // the JDK polls on some platforms
+    private static final long TIMEOUT = 30000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private WatchService service;
+    private Object watcher;
+
+    @Before
+    public void before() throws Exception {
+        service = FileSystems.getDefault().newWatchService();
+        watcher = Internals.create("FileWatcher", service);
+        Thread thread = new Thread((Runnable) watcher, "FileWatcherTest");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @After
+    public void after() throws Exception {
+        service.close();
+        Internals.callStatic("FileStats", "clear");
+    }
+
+    private boolean register(File dir, boolean recursive) {
+        return (Boolean) Internals.call(watcher, "register", dir, recursive);
+    }
+
+    private void unregister(File dir, boolean recursive) {
+        Internals.call(watcher, "unregister", dir, recursive);
+    }
+
+    private int watching() {
+        return (Integer) Internals.call(watcher, "getWatchCount");
+    }
+
+    private static long length(File file) {
+        return (Long) Internals.get(Internals.callStatic("FileStats", "stat", file, true), "length");
+    }
+
+    // the changed paths, as a FileWatcher.Listener, which the tests can't implement directly
+    private Object subscribe(File root, final BlockingQueue<Path> changes) {
+        Class<?> type = Internals.type("FileWatcher$Listener");
+        Object listener = Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{ type }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                switch (method.getName()) {
+                case "changed": changes.add((Path) args[0]); return null;
+                case "hashCode": return System.identityHashCode(proxy);
+                case "equals": return proxy == args[0];
+                default: return "listener";
+                }
+            }
+        });
+        Internals.call(watcher, "subscribe", root, listener);
+        return listener;
+    }
+
+    private static void awaitChange(BlockingQueue<Path> changes, Path expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (Path path; (path = changes.poll(deadline - System.currentTimeMillis(), TimeUnit.MILLISECONDS)) != null; ) {
+            if (path.equals(expected)) return;
+        }
+        Assert.fail("no change to " + expected);
+    }
+
+    // watched stats are kept until the watcher sees a change
+    @Test
+    public void invalidation() throws Exception {
+        File dir = tmp.newFolder("lib");
+        File jar = new File(dir, "a.jar");
+        Files.write(jar.toPath(), new byte[10]);
+        Assert.assertTrue(register(dir, false));
+        BlockingQueue<Path> changes = new LinkedBlockingQueue<>();
+        subscribe(dir, changes);
+
+        Assert.assertEquals(10L, length(jar));
+        Files.write(jar.toPath(), new byte[20]);
+        awaitChange(changes, jar.getAbsoluteFile().toPath());
+        Assert.assertEquals(20L, length(jar));
+        Assert.assertTrue((Long) Internals.call(watcher, "getEventCount") > 0);
+        unregister(dir, false);
+    }
+
+    // new subdirectories of a tree are watched too
+    @Test
+    public void recursive() throws Exception {
+        File root = tmp.newFolder("classes");
+        Assert.assertTrue(register(root, true));
+        BlockingQueue<Path> changes = new LinkedBlockingQueue<>();
+        subscribe(root, changes);
+
+        File pkg = new File(root, "org/example");
+        Assert.assertTrue(pkg.mkdirs());
+        awaitChange(changes, new File(root, "org").getAbsoluteFile().toPath());
+        // until the new directories are registered, changes within them are missed
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (watching() < 3 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        Assert.assertEquals(3, watching());
+
+        File clazz = new File(pkg, "Example.class");
+        Files.write(clazz.toPath(), new byte[10]);
+        awaitChange(changes, clazz.getAbsoluteFile().toPath());
+        unregister(root, true);
+        Assert.assertEquals(0, watching());
+    }
+
+    // directories are watched until their last user unregisters
+    @Test
+    public void unregister() throws Exception {
+        File root = tmp.newFolder("classes");
+        File sub = new File(root, "lib");
+        Assert.assertTrue(sub.mkdir());
+        File other = tmp.newFolder("other");
+        File jar = new File(other, "a.jar");
+        Files.write(jar.toPath(), new byte[10]);
+
+        Assert.assertTrue(register(root, true));
+        Assert.assertTrue(register(sub, false));
+        Assert.assertTrue(register(other, false));
+        Assert.assertTrue(register(other, false));
+        Assert.assertEquals(3, watching());
+        Assert.assertFalse(register(new File(root, "missing"), false));
+
+        // still in use by its other registration
+        unregister(root, true);
+        Assert.assertEquals(2, watching());
+        unregister(sub, false);
+        Assert.assertEquals(1, watching());
+
+        Assert.assertEquals(10L, length(jar));
+        unregister(other, false);
+        Assert.assertEquals(1, watching());
+        Map<?, ?> stats = (Map<?, ?>) Internals.getStatic("FileStats", "stats");
+        Assert.assertTrue(stats.containsKey(jar.getAbsolutePath()));
+        unregister(other, false);
+        Assert.assertEquals(0, watching());
+        // changes would be missed from now on
+        Assert.assertFalse(stats.containsKey(jar.getAbsolutePath()));
+
+        // and it can be watched again
+        Assert.assertTrue(register(other, false));
+        Assert.assertEquals(1, watching());
+        unregister(other, false);
+    }
+}
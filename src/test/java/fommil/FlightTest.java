@@ -0,0 +1,30 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import org.junit.*;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+// the tests don't set `class-monkey.jfr', as it isn't on every JVM
+public class FlightTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    private static final String[] TYPES = { "ARCHIVE_INDEX", "ARCHIVE_STALE", "RESOURCE_READ", "DIRECTORY_LOOKUP" };
+
+    @Test
+    public void disabled() throws Exception {
+        Assert.assertNull(System.getProperty("class-monkey.jfr"));
+        Assert.assertFalse((Boolean) Internals.getStatic("Flight", "ENABLED"));
+        for (String type : TYPES) {
+            Object event = Internals.getStatic("Flight", type);
+            Assert.assertNull(type, Internals.get(event, "factory"));
+            Assert.assertNull(type, Internals.callStatic("Flight", "begin", event));
+        }
+        // a caller that commits regardless is only logged
+        Internals.callStatic("Flight", "commit", null, new Object[]{ "archive.jar", "Foo.class", 1, 2, 3L });
+    }
+}
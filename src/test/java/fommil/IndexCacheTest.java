@@ -0,0 +1,215 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.zip.*;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+public class IndexCacheTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private Object cache;
+    private File jar;
+    private Object index;
+    private String path;
+    private long checksum;
+
+    @Before
+    public void before() throws Exception {
+        cache = Internals.callStatic("IndexCache", "create", tmp.newFolder("cache").getPath());
+        jar = tmp.newFile("lib.jar");
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (int i = 0; i < 50; i++) {
+                out.putNextEntry(new ZipEntry("p" + (i % 5) + "/E" + i + ".class"));
+                out.write(new byte[i]);
+            }
+        }
+        Object builder = Internals.create("ArchiveIndex$Builder");
+        Internals.callStatic("CentralDirectory", "read", jar, builder);
+        index = Internals.call(builder, "build");
+        path = jar.getCanonicalPath();
+        checksum = (Long) Internals.callStatic("CentralDirectory", "checksum", jar);
+    }
+
+    private void store() {
+        Internals.call(cache, "store", path, jar.length(), jar.lastModified(), checksum, index, Internals.call(index, "packages"));
+    }
+
+    private Object load() {
+        return load(path, jar.length(), jar.lastModified(), checksum);
+    }
+
+    private Object load(String path, long length, long lastModified, long checksum) {
+        return Internals.call(cache, "load", path, length, lastModified, checksum);
+    }
+
+    private Object loadHint() {
+        return Internals.call(cache, "loadHint", path, jar.length(), jar.lastModified(), checksum);
+    }
+
+    private long count(String name) {
+        return (Long) Internals.call(cache, "get" + name + "Count");
+    }
+
+    // the only file in the cache, there are never temporary files left behind
+    private File cached() {
+        File[] files = ((File) Internals.get(cache, "dir")).listFiles();
+        Assert.assertEquals(Arrays.toString(files), 1, files.length);
+        Assert.assertTrue(files[0].getName(), files[0].getName().endsWith(".idx"));
+        return files[0];
+    }
+
+    private static void assertSameIndex(Object expected, Object actual) {
+        int size = (Integer) Internals.call(expected, "size");
+        Assert.assertEquals(size, Internals.call(actual, "size"));
+        for (int i = 0; i < size; i++) {
+            Assert.assertEquals(Internals.call(expected, "name", i), Internals.call(actual, "name", i));
+            Assert.assertEquals(Internals.call(expected, "hash", i), Internals.call(actual, "hash", i));
+            Assert.assertEquals(Internals.call(expected, "headerOffset", i), Internals.call(actual, "headerOffset", i));
+            Assert.assertEquals(Internals.call(expected, "method", i), Internals.call(actual, "method", i));
+            Assert.assertEquals(Internals.call(expected, "compressedSize", i), Internals.call(actual, "compressedSize", i));
+            Assert.assertEquals(Internals.call(expected, "size", i), Internals.call(actual, "size", i));
+            Assert.assertEquals(Internals.call(expected, "crc", i), Internals.call(actual, "crc", i));
+        }
+        Assert.assertEquals(Internals.call(expected, "packages"), Internals.call(actual, "packages"));
+    }
+
+    // flips a byte, or overwrites an int if `value' is given
+    private static void corrupt(File file, int position, Integer value) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (value == null) bytes.put(position, (byte) ~bytes.get(position));
+        else bytes.putInt(position, value);
+        Files.write(file.toPath(), bytes.array());
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        Assert.assertNull(load());
+        Assert.assertEquals(1, count("Miss"));
+
+        store();
+        cached();
+        assertSameIndex(index, load());
+
+        Object hint = loadHint();
+        Assert.assertEquals(Internals.call(index, "packages"), Internals.get(hint, "packages"));
+        int[] hashes = (int[]) Internals.get(hint, "hashes");
+        Assert.assertEquals(Internals.call(index, "size"), hashes.length);
+        for (int i = 0; i < hashes.length; i++) {
+            Assert.assertEquals(Internals.call(index, "hash", i), hashes[i]);
+        }
+        Assert.assertEquals(2, count("Hit"));
+        Assert.assertEquals(0, count("Stale"));
+        Assert.assertEquals(0, count("Corrupt"));
+
+        // replaced in place
+        store();
+        cached();
+        assertSameIndex(index, load());
+    }
+
+    // anything that doesn't match the archive is ignored
+    @Test
+    public void stale() throws Exception {
+        store();
+        Assert.assertNull(load(path, jar.length() + 1, jar.lastModified(), checksum));
+        Assert.assertNull(load(path, jar.length(), jar.lastModified() + 1000, checksum));
+        Assert.assertNull(load(path, jar.length(), jar.lastModified(), checksum + 1));
+        Assert.assertEquals(3, count("Stale"));
+        Assert.assertEquals(0, count("Corrupt"));
+        Assert.assertNotNull(load());
+
+        Assert.assertNull(load(path + ".other", jar.length(), jar.lastModified(), checksum));
+        Assert.assertEquals(1, count("Miss"));
+    }
+
+    // the index is checked separately to the header, which also holds the hint
+    @Test
+    public void corruptIndex() throws Exception {
+        store();
+        File file = cached();
+        corrupt(file, (int) file.length() - 20, null);
+        Assert.assertNull(load());
+        Assert.assertEquals(1, count("Corrupt"));
+        Assert.assertNotNull(loadHint());
+
+        store();
+        assertSameIndex(index, load());
+    }
+
+    @Test
+    public void corruptHeader() throws Exception {
+        store();
+        File file = cached();
+        // within the recorded path
+        corrupt(file, 20, null);
+        Assert.assertNull(load());
+        Assert.assertNull(loadHint());
+        Assert.assertEquals(2, count("Corrupt"));
+        Assert.assertEquals(0, count("Stale"));
+
+        store();
+        Assert.assertNotNull(load());
+    }
+
+    @Test
+    public void wrongVersion() throws Exception {
+        store();
+        File file = cached();
+        int version = (Integer) Internals.getStatic("IndexCache", "VERSION");
+        corrupt(file, 4, version - 1);
+        Assert.assertNull(load());
+        corrupt(file, 4, version);
+        corrupt(file, 0, 0);
+        Assert.assertNull(load());
+        Assert.assertEquals(2, count("Corrupt"));
+    }
+
+    @Test
+    public void truncated() throws Exception {
+        store();
+        File file = cached();
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        for (int length : new int[]{ 0, 16, 40, bytes.length / 2, bytes.length - 1 }) {
+            Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+            Assert.assertNull(String.valueOf(length), load());
+        }
+        Assert.assertEquals(5, count("Corrupt"));
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        Assert.assertNull(Internals.callStatic("IndexCache", "create", (Object) null));
+        Assert.assertNull(Internals.callStatic("IndexCache", "create", ""));
+        // a file is in the way
+        Assert.assertNull(Internals.callStatic("IndexCache", "create", jar.getPath()));
+    }
+
+    // the files are trusted, so nobody else may be able to write them
+    @Test
+    public void privateDirectory() throws Exception {
+        Assume.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        File created = new File(tmp.getRoot(), "new/cache");
+        Assert.assertNotNull(Internals.callStatic("IndexCache", "create", created.getPath()));
+        Assert.assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(created.toPath())));
+
+        File shared = tmp.newFolder("shared");
+        Files.setPosixFilePermissions(shared.toPath(), PosixFilePermissions.fromString("rwxrwxrwx"));
+        Assert.assertNull(Internals.callStatic("IndexCache", "create", shared.getPath()));
+    }
+}
@@ -0,0 +1,130 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+public class IndexPoolTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Future<Object>> invokeAll(List<Callable<Object>> tasks) {
+        return (List<Future<Object>>) Internals.callStatic("IndexPool", "invokeAll", tasks);
+    }
+
+    private static Object join(Future<Object> future) {
+        return Internals.callStatic("IndexPool", "join", future);
+    }
+
+    // the later tasks finish first, but the results are in task order
+    @Test
+    public void order() throws Exception {
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final int id = i;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Thread.sleep(5 * (8 - id));
+                    return id;
+                }
+            });
+        }
+        List<Future<Object>> futures = invokeAll(tasks);
+        Assert.assertEquals(8, futures.size());
+        for (int i = 0; i < 8; i++) {
+            Assert.assertTrue(futures.get(i).isDone());
+            Assert.assertEquals(i, join(futures.get(i)));
+        }
+    }
+
+    // a failure doesn't stop the other tasks, and is only seen when its result is joined
+    @Test
+    public void failures() throws Exception {
+        final RuntimeException unchecked = new IllegalArgumentException("unchecked");
+        final Error error = new AssertionError("error");
+        final IOException checked = new IOException("checked");
+        final AtomicInteger ran = new AtomicInteger();
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (final Throwable failure : new Throwable[]{ null, unchecked, null, error, checked, null }) {
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    ran.incrementAndGet();
+                    if (failure instanceof Exception) throw (Exception) failure;
+                    if (failure instanceof Error) throw (Error) failure;
+                    return "ok";
+                }
+            });
+        }
+        List<Future<Object>> futures = invokeAll(tasks);
+        Assert.assertEquals(6, ran.get());
+
+        Assert.assertEquals("ok", join(futures.get(0)));
+        try {
+            join(futures.get(1));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertSame(unchecked, e);
+        }
+        Assert.assertEquals("ok", join(futures.get(2)));
+        try {
+            join(futures.get(3));
+            Assert.fail();
+        } catch (AssertionError e) {
+            Assert.assertSame(error, e);
+        }
+        try {
+            join(futures.get(4));
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertSame(checked, e.getCause());
+        }
+        Assert.assertEquals("ok", join(futures.get(5)));
+    }
+
+    // the workers are created by the thread that submits the tasks
+    @Test
+    public void workers() throws Exception {
+        final Set<ClassLoader> loaders = Collections.synchronizedSet(new HashSet<ClassLoader>());
+        final Set<Boolean> daemons = Collections.synchronizedSet(new HashSet<Boolean>());
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Thread thread = Thread.currentThread();
+                    if (thread.getName().startsWith("class-monkey-index-")) {
+                        daemons.add(thread.isDaemon());
+                        if (thread.getContextClassLoader() != null) loaders.add(thread.getContextClassLoader());
+                    }
+                    Thread.sleep(5);
+                    return null;
+                }
+            });
+        }
+        ClassLoader original = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new java.net.URLClassLoader(new java.net.URL[0]));
+        try {
+            invokeAll(tasks);
+        } finally {
+            Thread.currentThread().setContextClassLoader(original);
+        }
+        Assert.assertTrue(loaders.toString(), loaders.isEmpty());
+        Assert.assertFalse(daemons.contains(false));
+    }
+
+    @Test
+    public void empty() throws Exception {
+        Assert.assertTrue(invokeAll(new ArrayList<Callable<Object>>()).isEmpty());
+    }
+}
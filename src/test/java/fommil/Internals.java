@@ -0,0 +1,125 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.lang.reflect.*;
+
+/**
+ * The agent puts fommil on the boot classpath, so the tests are in a
+ * different runtime package to the code under test, and the JVM
+ * refuses direct access to anything that isn't public. This reaches
+ * package-private classes and members reflectively instead.
+ *
+ * Members are found by name and the number of arguments, so
+ * overloads of the same arity must be avoided by the callers.
+ */
+final class Internals {
+    private Internals() { }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName("fommil." + name);
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static Object create(String type, Object... args) {
+        return create(type(type), args);
+    }
+
+    static Object create(Class<?> type, Object... args) {
+        for (Constructor<?> constructor : type.getDeclaredConstructors()) {
+            if (!matches(constructor.getParameterTypes(), args)) continue;
+            constructor.setAccessible(true);
+            try {
+                return constructor.newInstance(args);
+            } catch (InvocationTargetException e) {
+                throw rethrow(e.getCause());
+            } catch (ReflectiveOperationException e) {
+                throw new AssertionError(e);
+            }
+        }
+        throw new AssertionError("no constructor of " + type.getName() + " for " + args.length + " arguments");
+    }
+
+    static Object call(Object target, String method, Object... args) {
+        return invoke(target.getClass(), target, method, args);
+    }
+
+    static Object callStatic(String type, String method, Object... args) {
+        return invoke(type(type), null, method, args);
+    }
+
+    static Object get(Object target, String field) {
+        return read(target.getClass(), target, field);
+    }
+
+    static Object getStatic(String type, String field) {
+        return read(type(type), null, field);
+    }
+
+    private static Object invoke(Class<?> type, Object target, String name, Object[] args) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (!method.getName().equals(name) || !matches(method.getParameterTypes(), args)) continue;
+                method.setAccessible(true);
+                try {
+                    return method.invoke(target, args);
+                } catch (InvocationTargetException e) {
+                    throw rethrow(e.getCause());
+                } catch (IllegalAccessException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        }
+        throw new AssertionError("no method " + type.getName() + "#" + name + " for " + args.length + " arguments");
+    }
+
+    private static Object read(Class<?> type, Object target, String name) {
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                Field field = c.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(target);
+            } catch (NoSuchFieldException e) {
+                continue;
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+        throw new AssertionError("no field " + type.getName() + "#" + name);
+    }
+
+    private static boolean matches(Class<?>[] params, Object[] args) {
+        if (params.length != args.length) return false;
+        for (int i = 0; i < params.length; i++) {
+            if (args[i] != null && !box(params[i]).isInstance(args[i])) return false;
+        }
+        return true;
+    }
+
+    private static Class<?> box(Class<?> type) {
+        if (!type.isPrimitive()) return type;
+        if (type == int.class) return Integer.class;
+        if (type == long.class) return Long.class;
+        if (type == boolean.class) return Boolean.class;
+        if (type == byte.class) return Byte.class;
+        if (type == short.class) return Short.class;
+        if (type == char.class) return Character.class;
+        if (type == float.class) return Float.class;
+        if (type == double.class) return Double.class;
+        return Void.class;
+    }
+
+    // checked exceptions are passed through unchanged
+    private static RuntimeException rethrow(Throwable t) {
+        Internals.<RuntimeException>sneaky(t);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Throwable> void sneaky(Throwable t) throws T {
+        throw (T) t;
+    }
+}
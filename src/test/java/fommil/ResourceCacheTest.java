@@ -0,0 +1,257 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import org.junit.*;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+public class ResourceCacheTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    private static final URI SOURCE = URI.create("file:///ResourceCacheTest.jar");
+
+    // random, so that it doesn't compress
+    private static Object resource(String name, int size) {
+        byte[] bytes = new byte[size];
+        new Random(name.hashCode()).nextBytes(bytes);
+        return Internals.create("SimpleResource", SOURCE, name, URI.create("jar:" + SOURCE + "!/" + name), bytes);
+    }
+
+    private static Object get(Object segment, String name) {
+        return Internals.call(segment, "get", name);
+    }
+
+    // a miss followed by a read from the archive, as ArchiveResourceProvider does
+    private static void read(Object segment, String name, int size) {
+        if (get(segment, name) == null) Internals.call(segment, "putIfAbsent", name, resource(name, size), false);
+    }
+
+    private static boolean contains(Object segment, String name) {
+        return (Boolean) Internals.call(segment, "contains", name);
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Object category(String name) {
+        return Enum.valueOf((Class) Internals.type("CachePolicy$Category"), name);
+    }
+
+    private static String decide(String category, int size, int reads) {
+        return Internals.callStatic("CachePolicy", "decide", category(category), size, reads).toString();
+    }
+
+    private static long count(Object cache, String category) {
+        return (Long) Internals.call(cache, "getCount", category(category));
+    }
+
+    private static long weight(Object cache, String category) {
+        return (Long) Internals.call(cache, "getWeight", category(category));
+    }
+
+    private static boolean inflated(Object resource) {
+        return Internals.get(resource, "inflated") != null;
+    }
+
+    @Test
+    public void admission() throws Exception {
+        Object cache = Internals.create("ResourceCache", 1L << 20);
+        Object segment = Internals.call(cache, "segment");
+
+        read(segment, "org/example/Twice.class", 100);
+        Assert.assertFalse(contains(segment, "org/example/Twice.class"));
+        read(segment, "org/example/Twice.class", 100);
+        Assert.assertTrue(contains(segment, "org/example/Twice.class"));
+        Assert.assertNotNull(get(segment, "org/example/Twice.class"));
+
+        read(segment, "org/example/app.properties", 100);
+        Assert.assertTrue(contains(segment, "org/example/app.properties"));
+
+        // admitted regardless, but dropped on the first read
+        Internals.call(segment, "putIfAbsent", "org/example/Prefetched.class", resource("org/example/Prefetched.class", 100), true);
+        Assert.assertTrue(contains(segment, "org/example/Prefetched.class"));
+        Assert.assertNotNull(get(segment, "org/example/Prefetched.class"));
+        Assert.assertFalse(contains(segment, "org/example/Prefetched.class"));
+    }
+
+    // with the default options
+    @Test
+    public void policy() throws Exception {
+        for (String name : new String[]{ "org/example/Foo.class", "Foo$1.class" }) {
+            Assert.assertEquals(name, "CLASS", Internals.callStatic("CachePolicy", "categorize", name).toString());
+        }
+        for (String name : new String[]{ "app.properties", "log4j.xml", "reference.conf", "package.json", "a.yaml", "a.yml",
+                                         "META-INF/MANIFEST.MF", "META-INF/services/java.sql.Driver" }) {
+            Assert.assertEquals(name, "CONFIG", Internals.callStatic("CachePolicy", "categorize", name).toString());
+        }
+        for (String name : new String[]{ "logo.png", "META-INF/services.txt", "org/example/Foo.class.bak", "LICENSE" }) {
+            Assert.assertEquals(name, "OTHER", Internals.callStatic("CachePolicy", "categorize", name).toString());
+        }
+
+        // `class-monkey.cache.class.reads'
+        Assert.assertEquals("NEVER", decide("CLASS", 100, 1));
+        Assert.assertEquals("COMPRESSED", decide("CLASS", 100, 2));
+        Assert.assertEquals("COMPRESSED", decide("CLASS", 1 << 20, Integer.MAX_VALUE));
+
+        // `class-monkey.cache.inflated.max', regardless of reads
+        Assert.assertEquals("INFLATED", decide("CONFIG", 0, 1));
+        Assert.assertEquals("INFLATED", decide("CONFIG", 64 * 1024, 1));
+        Assert.assertEquals("COMPRESSED", decide("CONFIG", 64 * 1024 + 1, 1));
+        Assert.assertEquals("COMPRESSED", decide("CONFIG", 64 * 1024 + 1, 100));
+
+        Assert.assertEquals("COMPRESSED", decide("OTHER", 100, 1));
+        Assert.assertEquals("COMPRESSED", decide("OTHER", 1 << 20, 1));
+    }
+
+    // each category is held as the policy decides and reported separately
+    @Test
+    public void categories() throws Exception {
+        Object cache = Internals.create("ResourceCache", 1L << 20);
+        Object segment = Internals.call(cache, "segment");
+
+        Object small = Internals.call(segment, "putIfAbsent", "small.xml", resource("small.xml", 64 * 1024), false);
+        Assert.assertTrue(inflated(small));
+        Object large = Internals.call(segment, "putIfAbsent", "large.xml", resource("large.xml", 64 * 1024 + 1), false);
+        Assert.assertFalse(inflated(large));
+        Assert.assertEquals(2L, count(cache, "CONFIG"));
+        // random, so the encoded one is a little larger
+        long retained = (Integer) Internals.call(small, "getRetainedSize") + (Integer) Internals.call(large, "getRetainedSize");
+        Assert.assertEquals(retained, weight(cache, "CONFIG"));
+
+        read(segment, "org/example/Foo.class", 100);
+        Assert.assertEquals(0L, count(cache, "CLASS"));
+        read(segment, "org/example/Foo.class", 100);
+        Assert.assertEquals(1L, count(cache, "CLASS"));
+
+        read(segment, "logo.png", 100);
+        Assert.assertEquals(1L, count(cache, "OTHER"));
+
+        long total = 0;
+        for (String category : new String[]{ "CLASS", "CONFIG", "OTHER" }) {
+            total += weight(cache, category);
+        }
+        Assert.assertEquals(Internals.call(cache, "getWeight"), total);
+
+        // a prefetched class is given back on its first read, seen by the next write
+        Internals.call(segment, "putIfAbsent", "org/example/Bar.class", resource("org/example/Bar.class", 100), true);
+        Assert.assertEquals(2L, count(cache, "CLASS"));
+        Assert.assertNotNull(get(segment, "org/example/Bar.class"));
+        Assert.assertFalse(contains(segment, "org/example/Bar.class"));
+        read(segment, "other.bin", 100);
+        Assert.assertEquals(1L, count(cache, "CLASS"));
+        // but a class that has been read before is kept
+        Assert.assertNotNull(get(segment, "org/example/Foo.class"));
+        Assert.assertTrue(contains(segment, "org/example/Foo.class"));
+
+        Internals.call(segment, "clear");
+        for (String category : new String[]{ "CLASS", "CONFIG", "OTHER" }) {
+            Assert.assertEquals(category, 0L, count(cache, category));
+            Assert.assertEquals(category, 0L, weight(cache, category));
+        }
+    }
+
+    // frequently read resources survive a scan of resources that are read once
+    @Test
+    public void eviction() throws Exception {
+        long budget = 50 * 1024;
+        Object cache = Internals.create("ResourceCache", budget);
+        Object segment = Internals.call(cache, "segment");
+
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                read(segment, "hot/" + i + ".bin", 1000);
+            }
+        }
+        for (int i = 0; i < 500; i++) {
+            read(segment, "cold/" + i + ".bin", 1000);
+            Assert.assertTrue((Long) Internals.call(cache, "getWeight") <= budget);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            Assert.assertTrue("hot/" + i + ".bin", contains(segment, "hot/" + i + ".bin"));
+        }
+        Assert.assertTrue((Long) Internals.call(cache, "getEvictionCount") >= 450);
+        Assert.assertEquals(Internals.call(cache, "getWeight"), Internals.call(segment, "getWeight"));
+
+        // and the budget is given back
+        for (int i = 0; i < 10; i++) {
+            read(segment, "after/" + i + ".bin", 1000);
+        }
+        Internals.call(segment, "clear");
+        Assert.assertEquals(0L, Internals.call(cache, "getWeight"));
+        Assert.assertEquals(0, Internals.call(segment, "size"));
+    }
+
+    // evicted resources give their slabs back, so the arena never fills up
+    @Test
+    public void offHeap() throws Exception {
+        long slab = 8 * 1024;
+        long reserve = 16 * slab;
+        Object arena = Internals.callStatic("ResourceArena", "create", reserve, slab);
+        Object cache = Internals.create("ResourceCache", 32 * 1024L, arena);
+        Object segment = Internals.call(cache, "segment");
+
+        String name = "hot.bin";
+        for (int i = 0; i < 5; i++) {
+            read(segment, name, 1000);
+        }
+        // many times the size of the arena
+        for (int i = 0; i < 2000; i++) {
+            read(segment, "cold/" + i + ".bin", 1000);
+            Assert.assertTrue((Long) Internals.call(arena, "getReserved") <= reserve);
+        }
+        Assert.assertEquals(0L, Internals.call(arena, "getFallbacks"));
+        Assert.assertTrue((Long) Internals.call(arena, "getAllocated") >= 2000 * 1000L);
+        Assert.assertTrue((Long) Internals.call(arena, "getRetired") > 0);
+
+        // and what is still cached is intact
+        Object cached = get(segment, name);
+        Assert.assertNotNull(cached);
+        byte[] expected = new byte[1000];
+        new Random(name.hashCode()).nextBytes(expected);
+        Assert.assertArrayEquals(expected, (byte[]) Internals.call(cached, "getBytes"));
+
+        // only the slab that is being allocated from is kept
+        Internals.call(segment, "clear");
+        Assert.assertTrue((Long) Internals.call(arena, "getReserved") <= slab);
+    }
+
+    // the sketch and the queues are only written with the lock held
+    @Test
+    public void concurrentReads() throws Exception {
+        long budget = 64 * 1024;
+        final Object cache = Internals.create("ResourceCache", budget);
+        final Object segment = Internals.call(cache, "segment");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = 0; i < 20000; i++) {
+                        // skewed, so that some names are much hotter than others
+                        int n = (int) Math.abs(random.nextGaussian() * 100);
+                        read(segment, "skewed/" + n + ".bin", 500);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Assert.assertTrue((Long) Internals.call(cache, "getWeight") <= budget);
+        Assert.assertEquals(Internals.call(cache, "getWeight"), Internals.call(segment, "getWeight"));
+        for (int n = 0; n < 10; n++) {
+            Assert.assertTrue("skewed/" + n + ".bin", contains(segment, "skewed/" + n + ".bin"));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.*;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+public class ResourceCodecTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    /** Named by `class-monkey.cache.codec', so must be public. */
+    public static final class Reversed implements ResourceCodec {
+        static final AtomicInteger encoded = new AtomicInteger();
+
+        @Override
+        public byte[] encode(byte[] data, int offset, int length) {
+            encoded.incrementAndGet();
+            byte[] out = new byte[length];
+            for (int i = 0; i < length; i++) out[i] = data[offset + length - 1 - i];
+            return out;
+        }
+
+        @Override
+        public byte[] decode(byte[] encoded, int offset, int length, int size) throws IOException {
+            if (length != size) throw new IOException("bad size");
+            return encode(encoded, offset, length);
+        }
+    }
+
+    private static ResourceCodec parse(String spec) {
+        return (ResourceCodec) Internals.callStatic("ResourceCodecs", "parse", spec);
+    }
+
+    private static ResourceCodec codec(String name) {
+        return (ResourceCodec) Internals.getStatic("ResourceCodecs", name);
+    }
+
+    // text-like, random bytes aren't compressible
+    private static byte[] content(int size, long seed) {
+        byte[] data = new byte[size];
+        Random random = new Random(seed);
+        String[] words = { "java/lang/Object", "<init>", "()V", "Code", "LineNumberTable", "fommil/" };
+        int i = 0;
+        while (i < size) {
+            if (random.nextInt(4) == 0) {
+                data[i++] = (byte) random.nextInt(256);
+            } else {
+                byte[] word = words[random.nextInt(words.length)].getBytes(StandardCharsets.UTF_8);
+                for (int j = 0; j < word.length && i < size; j++) data[i++] = word[j];
+            }
+        }
+        return data;
+    }
+
+    private static void assertRoundTrip(ResourceCodec codec, byte[] data) throws IOException {
+        // the region is in the middle of a larger array, both ways
+        byte[] padded = new byte[data.length + 20];
+        System.arraycopy(data, 0, padded, 7, data.length);
+        byte[] encoded = codec.encode(padded, 7, data.length);
+        byte[] surrounded = new byte[encoded.length + 20];
+        Arrays.fill(surrounded, (byte) 0x55);
+        System.arraycopy(encoded, 0, surrounded, 3, encoded.length);
+        Assert.assertArrayEquals(codec + " " + data.length, data, codec.decode(surrounded, 3, encoded.length, data.length));
+    }
+
+    @Test
+    public void parse() throws Exception {
+        Assert.assertSame(codec("DEFLATE"), parse("deflate"));
+        Assert.assertSame(codec("DEFLATE"), parse("DEFLATE"));
+        Assert.assertSame(codec("NONE"), parse("none"));
+        Assert.assertSame(codec("LZ4"), parse("lz4"));
+        Assert.assertEquals("deflate:1", parse("deflate:1").toString());
+        Assert.assertEquals("deflate:9", parse("deflate:9").toString());
+        Assert.assertTrue((Boolean) Internals.callStatic("ResourceCodecs", "isDeflate", parse("deflate:5")));
+        Assert.assertFalse((Boolean) Internals.callStatic("ResourceCodecs", "isDeflate", parse("lz4")));
+
+        ResourceCodec custom = parse(Reversed.class.getName());
+        Assert.assertTrue(custom instanceof Reversed);
+        assertRoundTrip(custom, content(100, 1));
+    }
+
+    @Test
+    public void parseFallback() throws Exception {
+        for (String bad : new String[]{ "", "deflate:0", "deflate:10", "deflate:x", "deflate:", "lz5", "java.lang.String", ResourceCodecTest.class.getName() }) {
+            Assert.assertSame(bad, codec("DEFLATE"), parse(bad));
+        }
+    }
+
+    @Test
+    public void roundTrip() throws Exception {
+        for (ResourceCodec codec : new ResourceCodec[]{ codec("DEFLATE"), parse("deflate:1"), codec("NONE"), codec("LZ4") }) {
+            for (int size : new int[]{ 0, 1, 4, 12, 13, 100, 1000, 65536, 200000 }) {
+                assertRoundTrip(codec, content(size, size));
+                // long runs and matches, more than 64k apart
+                assertRoundTrip(codec, new byte[size]);
+            }
+        }
+    }
+
+    @Test
+    public void lz4Compresses() throws Exception {
+        byte[] data = content(100000, 42);
+        Assert.assertTrue(codec("LZ4").encode(data, 0, data.length).length < data.length / 2);
+        // incompressible data only grows by the block overhead
+        byte[] random = new byte[100000];
+        new Random(42).nextBytes(random);
+        Assert.assertTrue(codec("LZ4").encode(random, 0, random.length).length <= random.length + random.length / 255 + 16);
+    }
+
+    // the block format, as written by the reference implementation
+    @Test
+    public void lz4Format() throws Exception {
+        // a literal, a match of 14 at distance 1, then the last 5 literals
+        byte[] block = { 0x1a, 'a', 0x01, 0x00, 0x50, 'a', 'a', 'a', 'a', 'a' };
+        byte[] expected = new byte[20];
+        Arrays.fill(expected, (byte) 'a');
+        Assert.assertArrayEquals(expected, codec("LZ4").decode(block, 0, block.length, 20));
+    }
+
+    @Test
+    public void lz4Corrupt() throws Exception {
+        ResourceCodec lz4 = codec("LZ4");
+        byte[] data = content(10000, 7);
+        byte[] encoded = lz4.encode(data, 0, data.length);
+        byte[][] corrupt = {
+            Arrays.copyOf(encoded, encoded.length / 2),
+            // a match before the start
+            { 0x10, 'a', 0x05, 0x00, 0x50, 'a', 'a', 'a', 'a', 'a' },
+            // zero distance
+            { 0x1a, 'a', 0x00, 0x00, 0x50, 'a', 'a', 'a', 'a', 'a' },
+            {},
+        };
+        for (byte[] bad : corrupt) {
+            try {
+                lz4.decode(bad, 0, bad.length, data.length);
+                Assert.fail(Arrays.toString(bad));
+            } catch (IOException expected) { }
+        }
+        try {
+            lz4.decode(encoded, 0, encoded.length, data.length + 1);
+            Assert.fail();
+        } catch (IOException expected) { }
+    }
+
+    // a custom codec is what the cached resource is held with
+    @Test
+    public void recode() throws Exception {
+        byte[] data = content(1000, 3);
+        URI source = URI.create("file:///ResourceCodecTest.jar");
+        Object resource = Internals.create("SimpleResource", source, "Example.class", URI.create("jar:" + source + "!/Example.class"), data);
+        int before = Reversed.encoded.get();
+        Object recoded = Internals.call(resource, "recode", new Reversed());
+        Assert.assertEquals(before + 1, Reversed.encoded.get());
+        Assert.assertTrue(Internals.get(recoded, "codec") instanceof Reversed);
+        Assert.assertEquals(data.length, Internals.call(recoded, "getRetainedSize"));
+        Assert.assertArrayEquals(data, ((sun.misc.Resource) recoded).getBytes());
+        Assert.assertArrayEquals(data, ((sun.misc.Resource) Internals.call(recoded, "recode", codec("LZ4"))).getBytes());
+    }
+}
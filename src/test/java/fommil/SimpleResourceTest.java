@@ -0,0 +1,130 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URL;
+import java.util.*;
+import java.util.zip.*;
+import org.junit.*;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static fommil.ClassMonkeyUtils.*;
+
+public class SimpleResourceTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    private static final URI SOURCE = URI.create("file:///SimpleResourceTest.jar");
+    private static final String NAME = "org/example/Example.class";
+    private static final URI LOC = URI.create("jar:" + SOURCE + "!/" + NAME);
+
+    private static byte[] content(int size) {
+        byte[] data = new byte[size];
+        Random random = new Random(size);
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) random.nextInt(16);
+        }
+        return data;
+    }
+
+    // as if it were read from the middle of an archive
+    private static sun.misc.Resource fromDeflated(byte[] data, int size, int crc) throws IOException {
+        byte[] raw = deflateRaw(data, 0, data.length);
+        byte[] buf = new byte[100 + raw.length + 100];
+        System.arraycopy(raw, 0, buf, 100, raw.length);
+        return (sun.misc.Resource) Internals.callStatic("SimpleResource", "fromDeflated", SOURCE, NAME, LOC, buf, 100, raw.length, size, crc);
+    }
+
+    @Test
+    public void passThrough() throws Exception {
+        for (int size : new int[]{ 0, 1, 1000, 100000 }) {
+            byte[] data = content(size);
+            sun.misc.Resource resource = fromDeflated(data, size, crc32(data, 0, size));
+            // only the deflated region is retained, as it is
+            Assert.assertEquals(deflateRaw(data, 0, size).length, Internals.call(resource, "getRetainedSize"));
+            Assert.assertSame(Internals.getStatic("ResourceCodecs", "DEFLATE"), Internals.get(resource, "codec"));
+            Assert.assertEquals(size, resource.getContentLength());
+            Assert.assertArrayEquals(data, resource.getBytes());
+            Assert.assertArrayEquals(data, slurp(resource.getInputStream()));
+            // deflate at any level is already what the cache wants
+            Assert.assertSame(resource, Internals.call(resource, "recode", Internals.callStatic("ResourceCodecs", "parse", "deflate:1")));
+            Object none = Internals.call(resource, "recode", Internals.getStatic("ResourceCodecs", "NONE"));
+            Assert.assertArrayEquals(data, ((sun.misc.Resource) none).getBytes());
+        }
+    }
+
+    @Test
+    public void crcMismatch() throws Exception {
+        byte[] data = content(1000);
+        sun.misc.Resource resource = fromDeflated(data, data.length, crc32(data, 0, data.length) + 1);
+        try {
+            resource.getBytes();
+            Assert.fail();
+        } catch (ZipException expected) { }
+        try (InputStream in = resource.getInputStream()) {
+            slurp(in);
+            Assert.fail();
+        } catch (ZipException expected) { }
+    }
+
+    @Test
+    public void sizeMismatch() throws Exception {
+        byte[] data = content(1000);
+        sun.misc.Resource resource = fromDeflated(data, data.length + 1, crc32(data, 0, data.length));
+        try {
+            resource.getBytes();
+            Assert.fail();
+        } catch (IOException expected) { }
+        try (InputStream in = resource.getInputStream()) {
+            slurp(in);
+            Assert.fail();
+        } catch (IOException expected) { }
+    }
+
+    @Test
+    public void fromStored() throws Exception {
+        byte[] data = content(1000);
+        byte[] buf = new byte[1100];
+        System.arraycopy(data, 0, buf, 50, data.length);
+        int crc = crc32(data, 0, data.length);
+        sun.misc.Resource resource = (sun.misc.Resource) Internals.callStatic("SimpleResource", "fromStored", SOURCE, NAME, LOC, buf, 50, 1000, 1000L, crc);
+        Assert.assertArrayEquals(data, resource.getBytes());
+
+        for (Object[] bad : new Object[][]{ { 1000L, crc + 1 }, { 1001L, crc }, { 999L, crc } }) {
+            try {
+                Internals.callStatic("SimpleResource", "fromStored", SOURCE, NAME, LOC, buf, 50, 1000, bad[0], bad[1]);
+                Assert.fail(Arrays.toString(bad));
+            } catch (Exception expected) {
+                // thrown unchecked by Internals
+                Assert.assertTrue(expected.toString(), expected instanceof ZipException);
+            }
+        }
+    }
+
+    // deflated archive entries are never inflated or recompressed to be held
+    @Test
+    public void fromArchive() throws Exception {
+        File jar = File.createTempFile("SimpleResourceTest", ".jar");
+        jar.deleteOnExit();
+        byte[] data = content(10000);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry(NAME));
+            out.write(data);
+        }
+        long compressed;
+        try (ZipFile zip = new ZipFile(jar)) {
+            compressed = zip.getEntry(NAME).getCompressedSize();
+        }
+
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        sun.misc.Resource resource = ucp.getResource(NAME);
+        Assert.assertEquals((int) compressed, Internals.call(resource, "getRetainedSize"));
+        Assert.assertArrayEquals(data, resource.getBytes());
+        ucp.closeLoaders();
+    }
+}
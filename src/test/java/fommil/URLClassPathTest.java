@@ -0,0 +1,797 @@
+// Copyright (C) 2016 Sam Halliday
+// License: http://www.gnu.org/software/classpath/license.html
+package fommil;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.*;
+import org.junit.*;
+import org.slf4j.bridge.SLF4JBridgeHandler;
+
+import static fommil.ClassMonkeyUtils.*;
+
+public class URLClassPathTest {
+
+    static {
+        SLF4JBridgeHandler.removeHandlersForRootLogger();
+        SLF4JBridgeHandler.install();
+    }
+
+    private final File RES = new File(System.getProperty("test.resources.dir"));
+
+    // every entry that ZipFile can see must be served with the same content
+    private static void assertMatchesZipFile(File file) throws IOException {
+        URLClassPath ucp = new URLClassPath(new URL[]{ file.toURI().toURL() });
+        try (ZipFile zip = new ZipFile(file)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                String name = entry.getName();
+                sun.misc.Resource resource = ucp.getResource(name);
+                Assert.assertNotNull(name, resource);
+                Assert.assertNotNull(name, ucp.findResource(name, false));
+                byte[] expected = slurp(zip.getInputStream(entry));
+                Assert.assertArrayEquals(name, expected, resource.getBytes());
+                Assert.assertArrayEquals(name, expected, slurp(resource.getInputStream()));
+                // optional, e.g. streamed resources don't have one
+                ByteBuffer buffer = resource.getByteBuffer();
+                if (buffer != null) Assert.assertEquals(name, ByteBuffer.wrap(expected), buffer);
+            }
+        }
+        Assert.assertNull(ucp.getResource("does/not/Exist.class"));
+        ucp.closeLoaders();
+    }
+
+    @Test
+    public void matchesZipFile() throws Exception {
+        for (String name : new String[]{ "foo.jar", "test.jar", "class_path_test.jar", "b4167874/test1.jar" }) {
+            assertMatchesZipFile(new File(RES, name));
+        }
+    }
+
+    @Test
+    public void zip64() throws Exception {
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            // more than 64k entries forces the zip64 end of central directory
+            for (int i = 0; i < 70000; i++) {
+                out.putNextEntry(new ZipEntry("p" + (i % 100) + "/E" + i + ".txt"));
+                out.write(("entry " + i).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertMatchesZipFile(jar);
+    }
+
+    @Test
+    public void prefixed() throws Exception {
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(jar)) {
+            out.write("#!/bin/sh\nexec java -jar $0\n".getBytes(StandardCharsets.UTF_8));
+            out.write(Files.readAllBytes(new File(RES, "foo.jar").toPath()));
+        }
+        assertMatchesZipFile(jar);
+    }
+
+    // large entries are streamed from the archive whenever they are read
+    @Test
+    public void streamed() throws Exception {
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        byte[] big = new byte[3 << 20];
+        new Random(0).nextBytes(big);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("deflated.bin"));
+            out.write(big);
+            out.putNextEntry(new ZipEntry("text.txt"));
+            out.write(new String(new char[3 << 20]).replace('\0', 'a').getBytes(StandardCharsets.UTF_8));
+            ZipEntry stored = new ZipEntry("stored.bin");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(big.length);
+            CRC32 crc = new CRC32();
+            crc.update(big);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(big);
+        }
+        assertMatchesZipFile(jar);
+
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        sun.misc.Resource resource = ucp.getResource("stored.bin");
+        Assert.assertTrue(jar.delete());
+        try {
+            resource.getBytes();
+            Assert.fail("should have been read from the archive");
+        } catch (IOException expected) { }
+        ucp.closeLoaders();
+    }
+
+    // streams that are read partially, and never closed, hold no file handles
+    @Test
+    public void abandonedStreams() throws Exception {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        Assume.assumeTrue(os instanceof com.sun.management.UnixOperatingSystemMXBean);
+        com.sun.management.UnixOperatingSystemMXBean unix = (com.sun.management.UnixOperatingSystemMXBean) os;
+
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        byte[] big = new byte[3 << 20];
+        new Random(0).nextBytes(big);
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            out.putNextEntry(new ZipEntry("deflated.bin"));
+            out.write(big);
+        }
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        sun.misc.Resource resource = ucp.getResource("deflated.bin");
+
+        List<InputStream> streams = new ArrayList<>();
+        long before = unix.getOpenFileDescriptorCount();
+        for (int i = 0; i < 100; i++) {
+            InputStream in = resource.getInputStream();
+            Assert.assertEquals(big[0] & 0xFF, in.read());
+            Assert.assertEquals(1000, in.read(new byte[1000]));
+            streams.add(in);
+        }
+        Assert.assertTrue(unix.getOpenFileDescriptorCount() - before < 10);
+
+        // and the content is still correct when read in chunks
+        Assert.assertArrayEquals(big, slurp(resource.getInputStream()));
+        ucp.closeLoaders();
+    }
+
+    // writes a zip64 archive with a single stored entry of `size'
+    // zeros, as a sparse file
+    private static File createOversized(String name, long size) throws IOException {
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        byte[] encoded = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer local = ByteBuffer.allocate(30 + encoded.length + 20).order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0)
+            .putInt(0).putInt(0).putInt(-1).putInt(-1)
+            .putShort((short) encoded.length).putShort((short) 20).put(encoded)
+            .putShort((short) 1).putShort((short) 16).putLong(size).putLong(size);
+        long cdOffset = local.capacity() + size;
+        ByteBuffer central = ByteBuffer.allocate(46 + encoded.length + 20 + 22).order(ByteOrder.LITTLE_ENDIAN);
+        central.putInt(0x02014b50).putShort((short) 45).putShort((short) 45).putShort((short) 0).putShort((short) 0)
+            .putInt(0).putInt(0).putInt(-1).putInt(-1)
+            .putShort((short) encoded.length).putShort((short) 20).putShort((short) 0)
+            .putShort((short) 0).putShort((short) 0).putInt(0).putInt(0).put(encoded)
+            .putShort((short) 1).putShort((short) 16).putLong(size).putLong(size);
+        central.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) 1).putShort((short) 1)
+            .putInt(46 + encoded.length + 20).putInt((int) cdOffset).putShort((short) 0);
+        local.flip();
+        central.flip();
+        try (FileChannel channel = FileChannel.open(jar.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(local, 0);
+            channel.write(central, cdOffset);
+        }
+        return jar;
+    }
+
+    // entries too large for an array are always streamed
+    @Test
+    public void oversized() throws Exception {
+        long size = (1L << 31) + 16;
+        File jar = createOversized("huge.bin", size);
+
+        Object builder = Internals.create("ArchiveIndex$Builder");
+        Internals.callStatic("CentralDirectory", "read", jar, builder);
+        Object index = Internals.call(builder, "build");
+        int i = (Integer) Internals.call(index, "indexOf", "huge.bin");
+        Assert.assertTrue((Boolean) Internals.call(index, "isOversized", i));
+        Assert.assertEquals(size, Internals.call(index, "size", i));
+        Assert.assertEquals(size, Internals.call(index, "compressedSize", i));
+
+        // as stored by the IndexCache
+        ByteBuffer buffer = ByteBuffer.allocate((Integer) Internals.call(index, "serializedSize")).order(ByteOrder.LITTLE_ENDIAN);
+        Internals.call(index, "writeTo", buffer);
+        Assert.assertFalse(buffer.hasRemaining());
+        buffer.flip();
+        Object read = Internals.callStatic("ArchiveIndex", "readFrom", buffer);
+        Assert.assertTrue((Boolean) Internals.call(read, "isOversized", i));
+        Assert.assertEquals(size, Internals.call(read, "size", i));
+
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        sun.misc.Resource resource = ucp.getResource("huge.bin");
+        Assert.assertEquals(-1, resource.getContentLength());
+        try (InputStream in = resource.getInputStream()) {
+            byte[] head = new byte[1 << 20];
+            int count = 0;
+            while (count < head.length) {
+                count += in.read(head, count, head.length - count);
+            }
+            Assert.assertArrayEquals(new byte[1 << 20], head);
+        }
+        try {
+            resource.getBytes();
+            Assert.fail("too large for an array");
+        } catch (IOException expected) { }
+        ucp.closeLoaders();
+    }
+
+    // in a separate method so that the interpreter doesn't keep the
+    // ZipOutputStream reachable while measuring
+    private static File createClasses(int count) throws IOException {
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (int i = 0; i < count; i++) {
+                out.putNextEntry(new ZipEntry("org/example/p" + (i % 500) + "/SomeClass" + i + ".class"));
+            }
+        }
+        return jar;
+    }
+
+    // entries are "name=content"
+    private static File createJar(String... entries) throws IOException {
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (String entry : entries) {
+                String[] parts = entry.split("=", 2);
+                out.putNextEntry(new ZipEntry(parts[0]));
+                out.write(parts[1].getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return jar;
+    }
+
+    // entries are "name=content", removed on exit
+    private static File createDirectory(String... entries) throws IOException {
+        File dir = Files.createTempDirectory("URLClassPathTest").toFile();
+        dir.deleteOnExit();
+        for (String entry : entries) {
+            String[] parts = entry.split("=", 2);
+            File file = dir;
+            for (String part : parts[0].split("/")) {
+                file = new File(file, part);
+                file.deleteOnExit();
+            }
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), parts[1].getBytes(StandardCharsets.UTF_8));
+        }
+        return dir;
+    }
+
+    private static URLClassPath classpath(File... files) throws IOException {
+        URL[] urls = new URL[files.length];
+        for (int i = 0; i < files.length; i++) {
+            urls[i] = files[i].toURI().toURL();
+        }
+        return new URLClassPath(urls);
+    }
+
+    private static List<String> readAll(URLClassPath ucp, String name) throws IOException {
+        List<String> found = new ArrayList<>();
+        for (sun.misc.Resource resource : Collections.list(ucp.getResources(name))) {
+            found.add(new String(resource.getBytes(), StandardCharsets.UTF_8));
+        }
+        return found;
+    }
+
+    private static String read(URLClassPath ucp, String name) throws IOException {
+        return new String(ucp.getResource(name).getBytes(), StandardCharsets.UTF_8);
+    }
+
+    // as if `class-monkey.index.lazy' were set, for this archive only
+    private static Object lazyArchive(File jar) throws IOException {
+        File canonical = jar.getCanonicalFile();
+        Object key = Internals.create("URLClassPath$ArchiveResourceKey", canonical.getPath().intern());
+        Object stat = Internals.callStatic("FileStats", "stat", canonical);
+        return Internals.create("URLClassPath$ArchiveResourceProvider", canonical.toURI(), key, stat, true);
+    }
+
+    // a lazy archive is routed by package, like any other, once it has been indexed
+    @Test
+    public void lazyArchiveIsReregistered() throws Exception {
+        Object first = lazyArchive(createClasses(10));
+        Object second = lazyArchive(createJar("org/other/Other.class=other"));
+        URLClassPath ucp = new URLClassPath(new URL[0]);
+        Internals.call(ucp, "register", first);
+        Internals.call(ucp, "register", second);
+        Assert.assertEquals(2, ((Object[]) Internals.get(ucp, "unindexed")).length);
+
+        // reaches, and so indexes, both
+        Assert.assertEquals("other", read(ucp, "org/other/Other.class"));
+        Assert.assertEquals(0, ((Object[]) Internals.get(ucp, "unindexed")).length);
+        Map<?, ?> packages = (Map<?, ?>) Internals.get(ucp, "packages");
+        Assert.assertArrayEquals(new Object[]{ second }, (Object[]) packages.get("org/other"));
+        Assert.assertArrayEquals(new Object[]{ first }, (Object[]) packages.get("org/example/p1"));
+        Assert.assertTrue((Boolean) Internals.call(Internals.get(ucp, "filter"), "mightContain", "org/example/p1/SomeClass1.class"));
+
+        long probed = (Long) Internals.call(first, "getLookupCount");
+        Assert.assertEquals("other", read(ucp, "org/other/Other.class"));
+        Assert.assertNull(ucp.getResource("org/unknown/Missing.class"));
+        Assert.assertEquals(probed, Internals.call(first, "getLookupCount"));
+        Assert.assertNotNull(ucp.getResource("org/example/p1/SomeClass1.class"));
+        ucp.closeLoaders();
+    }
+
+    // re-registering must keep the first match of a linear scan
+    @Test
+    public void lazyArchiveKeepsClasspathOrder() throws Exception {
+        File dir = Files.createTempDirectory("URLClassPathTest").toFile();
+        File shadowed = new File(dir, "org/lazy/Shadowed.txt");
+        Assert.assertTrue(shadowed.getParentFile().mkdirs());
+        Files.write(shadowed.toPath(), "directory".getBytes(StandardCharsets.UTF_8));
+        shadowed.deleteOnExit();
+        shadowed.getParentFile().deleteOnExit();
+        shadowed.getParentFile().getParentFile().deleteOnExit();
+        dir.deleteOnExit();
+
+        Object lazy = lazyArchive(createJar("org/lazy/Shadowed.txt=lazy", "org/shared/Both.txt=lazy", "org/shared/Lazy.txt=lazy"));
+        URLClassPath ucp = new URLClassPath(new URL[]{ dir.toURI().toURL() });
+        Internals.call(ucp, "register", lazy);
+        ucp.addURL(createJar("org/shared/Both.txt=eager", "org/shared/Eager.txt=eager").toURI().toURL());
+
+        Assert.assertEquals("eager", read(ucp, "org/shared/Eager.txt"));
+        Assert.assertEquals(1, ((Object[]) Internals.get(ucp, "unindexed")).length);
+        Assert.assertEquals("lazy", read(ucp, "org/shared/Both.txt"));
+        Assert.assertEquals("lazy", read(ucp, "org/shared/Lazy.txt"));
+        Assert.assertEquals("directory", read(ucp, "org/lazy/Shadowed.txt"));
+        ucp.closeLoaders();
+    }
+
+    /**
+     * The retained heap of indexing an archive, as the index computes
+     * it, compared to a lower bound for the HashMap<String, ZipEntry>
+     * that used to be held per archive (64-bit, compressed oops): per
+     * entry a String and its char[] for the name, a ZipEntry (at least
+     * 64 bytes of fields) and a HashMap.Node, ignoring the table.
+     */
+    @Test
+    public void compactIndex() throws Exception {
+        File jar = createClasses(50000);
+        long legacy = 0;
+        try (ZipFile zip = new ZipFile(jar)) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                legacy += 24 + align(16 + 2 * entry.getName().length()) + 64 + 32;
+            }
+        }
+
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        Assert.assertNotNull(ucp.findResource("org/example/p7/SomeClass7.class", false));
+        Object archive = Internals.call(ucp, "archiveOf", "org/example/p7/SomeClass7.class");
+        long compact = (Long) Internals.call(Internals.call(archive, "index"), "footprint");
+        Assert.assertEquals(50000, Internals.call(Internals.call(archive, "index"), "size"));
+        Assert.assertTrue("compact = " + compact + ", legacy at least " + legacy, 2 * compact < legacy);
+        ucp.closeLoaders();
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    // prefetched resources are served from the cache, even once the archive has gone
+    @Test
+    public void prefetch() throws Exception {
+        File jar = createClasses(1000);
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        ucp.prefetch("org.example.p1", "org/example/p2?/*.class").get();
+        Assert.assertTrue(jar.delete());
+
+        Assert.assertNotNull(ucp.getResource("org/example/p1/SomeClass1.class").getBytes());
+        Assert.assertNotNull(ucp.getResource("org/example/p25/SomeClass25.class").getBytes());
+        try {
+            ucp.getResource("org/example/p3/SomeClass3.class");
+            Assert.fail("p3 should not have been prefetched");
+        } catch (IllegalStateException expected) { }
+        ucp.closeLoaders();
+    }
+
+    // classes are dropped once read, small configuration is kept
+    @Test
+    public void cachePolicy() throws Exception {
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (String name : new String[]{ "org/example/policy/Once.class", "org/example/policy/Prefetched.class", "org/example/policy/app.properties" }) {
+                out.putNextEntry(new ZipEntry(name));
+                out.write(name.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        ucp.prefetch("org/example/policy/Prefetched.class").get();
+        Assert.assertNotNull(ucp.getResource("org/example/policy/Once.class").getBytes());
+        Assert.assertNotNull(ucp.getResource("org/example/policy/Prefetched.class").getBytes());
+        Assert.assertNotNull(ucp.getResource("org/example/policy/app.properties").getBytes());
+        Assert.assertTrue(jar.delete());
+
+        byte[] expected = "org/example/policy/app.properties".getBytes(StandardCharsets.UTF_8);
+        Assert.assertArrayEquals(expected, ucp.getResource("org/example/policy/app.properties").getBytes());
+        Assert.assertArrayEquals(expected, slurp(ucp.getResource("org/example/policy/app.properties").getInputStream()));
+        for (String name : new String[]{ "org/example/policy/Once.class", "org/example/policy/Prefetched.class" }) {
+            try {
+                ucp.getResource(name);
+                Assert.fail(name + " should not have been cached");
+            } catch (IllegalStateException expectedFailure) { }
+        }
+        ucp.closeLoaders();
+    }
+
+    // the package index keeps classpath order, the first archive wins
+    @Test
+    public void sharedPackage() throws Exception {
+        File a = createJar("org/shared/Same.txt=a", "org/shared/A.txt=a");
+        File b = createJar("org/shared/Same.txt=b", "org/shared/B.txt=b", "org/other/B.txt=b");
+        File c = createJar("org/shared/Same.txt=c");
+
+        URLClassPath ucp = classpath(a, b, c);
+        Assert.assertEquals("a", read(ucp, "org/shared/Same.txt"));
+        Assert.assertEquals("b", read(ucp, "org/shared/B.txt"));
+        Assert.assertEquals("b", read(ucp, "org/other/B.txt"));
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), readAll(ucp, "org/shared/Same.txt"));
+        Assert.assertNull(ucp.getResource("org/missing/Same.txt"));
+        Assert.assertEquals(1L, Internals.call(ucp, "getPackageSkipCount"));
+        ucp.closeLoaders();
+
+        ucp = classpath(c, b, a);
+        Assert.assertEquals("c", read(ucp, "org/shared/Same.txt"));
+        Assert.assertEquals(Arrays.asList("c", "b", "a"), readAll(ucp, "org/shared/Same.txt"));
+        ucp.closeLoaders();
+    }
+
+    // directories aren't indexed, so are asked about every package in turn
+    @Test
+    public void unindexedPackage() throws Exception {
+        File jar = createJar("org/shared/Same.txt=jar", "org/shared/Jar.txt=jar");
+        File dir = createDirectory("org/shared/Same.txt=dir", "org/unindexed/Dir.txt=dir");
+
+        URLClassPath ucp = classpath(dir, jar);
+        Assert.assertEquals("dir", read(ucp, "org/shared/Same.txt"));
+        Assert.assertEquals("jar", read(ucp, "org/shared/Jar.txt"));
+        Assert.assertEquals("dir", read(ucp, "org/unindexed/Dir.txt"));
+        Assert.assertEquals(Arrays.asList("dir", "jar"), readAll(ucp, "org/shared/Same.txt"));
+        ucp.closeLoaders();
+
+        ucp = classpath(jar, dir);
+        Assert.assertEquals("jar", read(ucp, "org/shared/Same.txt"));
+        Assert.assertEquals("dir", read(ucp, "org/unindexed/Dir.txt"));
+        Assert.assertEquals(Arrays.asList("jar", "dir"), readAll(ucp, "org/shared/Same.txt"));
+        Assert.assertNull(ucp.getResource("org/missing/Dir.txt"));
+        // the archive is skipped for both, but the directory is still asked
+        Assert.assertEquals(2L, Internals.call(ucp, "getPackageSkipCount"));
+        ucp.closeLoaders();
+    }
+
+    @Test
+    public void defaultPackage() throws Exception {
+        File jar = createJar("top.txt=jar", "Top.class=jar", "org/Nested.txt=jar");
+        File dir = createDirectory("top.txt=dir", "dir.txt=dir");
+
+        URLClassPath ucp = classpath(jar);
+        Assert.assertEquals("jar", read(ucp, "top.txt"));
+        Assert.assertEquals("jar", read(ucp, "/top.txt"));
+        Assert.assertEquals("jar", read(ucp, "Top.class"));
+        Assert.assertNull(ucp.getResource("missing.txt"));
+        Assert.assertNull(ucp.getResource("Nested.txt"));
+        ucp.closeLoaders();
+
+        ucp = classpath(dir, jar);
+        Assert.assertEquals("dir", read(ucp, "top.txt"));
+        Assert.assertEquals("dir", read(ucp, "dir.txt"));
+        Assert.assertEquals("jar", read(ucp, "Top.class"));
+        Assert.assertEquals(Arrays.asList("dir", "jar"), readAll(ucp, "top.txt"));
+        ucp.closeLoaders();
+    }
+
+    // shared archives drop their cached resources when the last user closes
+    @Test
+    public void releaseOnLastClose() throws Exception {
+        File jar = createJar("org/example/app.properties=app");
+        URLClassPath first = classpath(jar);
+        URLClassPath second = classpath(jar);
+        Assert.assertEquals("app", read(first, "org/example/app.properties"));
+        Object archive = Internals.call(first, "archiveOf", "org/example/app.properties");
+        Assert.assertSame(archive, Internals.call(second, "archiveOf", "org/example/app.properties"));
+        Object cache = Internals.call(archive, "getCache");
+        Assert.assertEquals(2, Internals.call(archive, "getUserCount"));
+        Assert.assertEquals(1, Internals.call(cache, "size"));
+
+        // only the first close counts
+        first.closeLoaders();
+        first.closeLoaders();
+        Assert.assertEquals(1, Internals.call(archive, "getUserCount"));
+        Assert.assertEquals(1, Internals.call(cache, "size"));
+        Assert.assertEquals("app", read(second, "org/example/app.properties"));
+
+        second.closeLoaders();
+        Assert.assertEquals(0, Internals.call(archive, "getUserCount"));
+        Assert.assertEquals(0, Internals.call(cache, "size"));
+
+        // and are picked up again by the next
+        URLClassPath third = classpath(jar);
+        Assert.assertSame(archive, Internals.call(third, "archiveOf", "org/example/app.properties"));
+        Assert.assertEquals(1, Internals.call(archive, "getUserCount"));
+        Assert.assertEquals("app", read(third, "org/example/app.properties"));
+        third.closeLoaders();
+    }
+
+    // as if `class-monkey.directory.index' were set, for this directory only
+    private static Object indexedDirectory(File dir) {
+        return Internals.create("URLClassPath$DirectoryResourceProvider", dir.toURI(), true);
+    }
+
+    private static boolean found(Object provider, String name) {
+        return Internals.call(provider, "find", name) != null;
+    }
+
+    @Test
+    public void directoryIndex() throws Exception {
+        File dir = createDirectory("top.txt=top", "org/example/A.txt=a", "org/example/nested/B.txt=b");
+        Object provider = indexedDirectory(dir);
+
+        Assert.assertTrue(found(provider, "top.txt"));
+        Assert.assertTrue(found(provider, "/top.txt"));
+        Assert.assertTrue(found(provider, "org/example/A.txt"));
+        Assert.assertTrue(found(provider, "org/example/nested/B.txt"));
+        Assert.assertEquals("a", new String(((sun.misc.Resource) Internals.call(provider, "get", "org/example/A.txt")).getBytes(), StandardCharsets.UTF_8));
+        // listed, but not files
+        Assert.assertFalse(found(provider, "org/example"));
+        Assert.assertFalse(found(provider, "org/example/nested"));
+        Assert.assertFalse(found(provider, "org/example/Missing.txt"));
+        Assert.assertFalse(found(provider, "org/missing/A.txt"));
+        Assert.assertFalse(found(provider, "missing/deeply/nested/A.txt"));
+        // not worth indexing, but still found
+        Assert.assertTrue(found(provider, "org/example/../example/A.txt"));
+        Assert.assertTrue(found(provider, "org//example/A.txt"));
+
+        // a package that appears later
+        File late = new File(dir, "org/late/C.txt");
+        Assert.assertTrue(late.getParentFile().mkdirs());
+        Files.write(late.toPath(), "c".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(found(provider, "org/late/C.txt"));
+        Internals.call(provider, "release");
+    }
+
+    // listings are kept while the directory's mtime is unchanged
+    @Test
+    public void directoryIndexRevalidation() throws Exception {
+        File dir = createDirectory("org/example/A.txt=a");
+        File pkg = new File(dir, "org/example");
+        // old enough that the listing is kept
+        long old = System.currentTimeMillis() - 60000;
+        for (File d : new File[]{ dir, new File(dir, "org"), pkg }) {
+            Assert.assertTrue(d.setLastModified(old));
+        }
+        Object provider = indexedDirectory(dir);
+        Map<?, ?> listings = (Map<?, ?>) Internals.get(provider, "listings");
+        Assert.assertTrue(found(provider, "org/example/A.txt"));
+        Assert.assertTrue(listings.containsKey("org/example"));
+
+        File added = new File(pkg, "B.txt");
+        Files.write(added.toPath(), "b".getBytes(StandardCharsets.UTF_8));
+        added.deleteOnExit();
+        Assert.assertTrue(pkg.setLastModified(old + 1000));
+        Assert.assertTrue(found(provider, "org/example/B.txt"));
+
+        // as the FileWatcher would say
+        Internals.call(provider, "changed", pkg.getAbsoluteFile().toPath());
+        Assert.assertFalse(listings.containsKey("org/example"));
+        // its parent lists it, so is dropped too
+        Assert.assertFalse(listings.containsKey("org"));
+        Internals.call(provider, "changed", dir.getAbsoluteFile().toPath());
+        Assert.assertTrue(listings.isEmpty());
+
+        Assert.assertTrue(added.delete());
+        Assert.assertTrue(pkg.setLastModified(old + 2000));
+        Assert.assertFalse(found(provider, "org/example/B.txt"));
+        Internals.call(provider, "release");
+    }
+
+    // a recently modified directory is listed again, but not on every lookup
+    @Test
+    public void directoryIndexRacy() throws Exception {
+        File dir = createDirectory("org/example/A.txt=a");
+        File pkg = new File(dir, "org/example");
+        long recent = pkg.lastModified();
+        Object provider = indexedDirectory(dir);
+        Map<?, ?> listings = (Map<?, ?>) Internals.get(provider, "listings");
+        long relist = (Long) Internals.getStatic("URLClassPath$DirectoryResourceProvider", "RELIST");
+
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(found(provider, "org/example/A.txt"));
+        Object listing = listings.get("org/example");
+        Assert.assertNotEquals(0L, Internals.get(listing, "racy"));
+        Assert.assertFalse(found(provider, "org/example/B.txt"));
+        if (System.currentTimeMillis() - start < relist) Assert.assertSame(listing, listings.get("org/example"));
+
+        // in the same mtime, which is why it is listed again
+        File added = new File(pkg, "B.txt");
+        Files.write(added.toPath(), "b".getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(pkg.setLastModified(recent));
+        Thread.sleep(relist + 1);
+        Assert.assertTrue(found(provider, "org/example/B.txt"));
+        Assert.assertNotSame(listing, listings.get("org/example"));
+        Internals.call(provider, "release");
+    }
+
+    // misses in a package that exists are answered by the Bloom filter
+    @Test
+    public void skipCounters() throws Exception {
+        File jar = createClasses(1000);
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        Assert.assertNotNull(ucp.getResource("org/example/p1/SomeClass1.class"));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNull(ucp.getResource("org/example/p1/Missing" + i + ".class"));
+        }
+        Assert.assertNull(ucp.getResource("org/example/nowhere/Missing.class"));
+
+        Assert.assertEquals(102L, Internals.call(ucp, "getLookupCount"));
+        Assert.assertEquals(101L, Internals.call(ucp, "getMissCount"));
+        Assert.assertEquals(1L, Internals.call(ucp, "getPackageSkipCount"));
+        // ~1% false positives
+        long filterSkips = (Long) Internals.call(ucp, "getFilterSkipCount");
+        Assert.assertTrue("filter skips = " + filterSkips, filterSkips >= 90 && filterSkips <= 100);
+        ucp.closeLoaders();
+    }
+
+    // readers don't lock, so adding an archive replaces the filter
+    @Test
+    public void filterIsNeverWrittenOncePublished() throws Exception {
+        URLClassPath ucp = new URLClassPath(new URL[]{ createClasses(10).toURI().toURL() });
+        Object published = Internals.get(ucp, "filter");
+        Object size = Internals.call(published, "size");
+
+        ucp.addURL(new File(RES, "foo.jar").toURI().toURL());
+        Object updated = Internals.get(ucp, "filter");
+        Assert.assertNotSame(published, updated);
+        Assert.assertEquals(size, Internals.call(published, "size"));
+        try (ZipFile zip = new ZipFile(new File(RES, "foo.jar"))) {
+            Assert.assertEquals(10 + zip.size(), Internals.call(updated, "size"));
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                Assert.assertNotNull(entry.getName(), ucp.getResource(entry.getName()));
+            }
+        }
+        ucp.closeLoaders();
+    }
+
+    // the bean itself, the counts are JVM-wide so only the archive's are exact
+    @Test
+    public void metrics() throws Exception {
+        ClassMonkeyMXBean metrics = (ClassMonkeyMXBean) Internals.create("ClassMonkeyMetrics");
+        long lookups = metrics.getLookupCount();
+        long misses = metrics.getLookupMissCount();
+
+        File jar = createClasses(10);
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        Assert.assertNotNull(ucp.getResource("org/example/p1/SomeClass1.class"));
+        Assert.assertNotNull(ucp.getResource("org/example/p2/SomeClass2.class"));
+        // usually ruled out by the filter, before the archive is asked
+        Assert.assertNull(ucp.getResource("org/example/p1/Missing.class"));
+
+        Assert.assertTrue(metrics.getLookupCount() - lookups >= 3);
+        Assert.assertTrue(metrics.getLookupMissCount() - misses >= 1);
+        ClassMonkeyMXBean.Archive archive = null;
+        for (ClassMonkeyMXBean.Archive candidate : metrics.getArchives()) {
+            if (candidate.getPath().equals(jar.getCanonicalPath())) archive = candidate;
+        }
+        Assert.assertNotNull(archive);
+        Assert.assertEquals(1, archive.getUsers());
+        Assert.assertEquals(10, archive.getEntries());
+        Assert.assertEquals(2L, archive.getHitCount());
+        Assert.assertTrue(archive.getLookupCount() >= 2);
+        ucp.closeLoaders();
+    }
+
+    // as ZipFile, the content of a stored entry must match its CRC
+    @Test
+    public void storedCorrupt() throws Exception {
+        byte[] content = "some stored content".getBytes(StandardCharsets.UTF_8);
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar))) {
+            ZipEntry entry = new ZipEntry("a/Stored.txt");
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(content);
+        }
+        byte[] bytes = Files.readAllBytes(jar.toPath());
+        String text = new String(bytes, StandardCharsets.ISO_8859_1);
+        int at = text.indexOf("stored content");
+        Assert.assertTrue(at > 0);
+        bytes[at] = 'S';
+        Files.write(jar.toPath(), bytes);
+
+        URLClassPath ucp = new URLClassPath(new URL[]{ jar.toURI().toURL() });
+        try {
+            ucp.getResource("a/Stored.txt");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof ZipException);
+        } finally {
+            ucp.closeLoaders();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void notAnArchive() throws Exception {
+        File jar = File.createTempFile("URLClassPathTest", ".jar");
+        jar.deleteOnExit();
+        Files.write(jar.toPath(), new byte[1024]);
+        new URLClassPath(new URL[]{ jar.toURI().toURL() });
+    }
+
+    // indexed in parallel, but the first bad archive in classpath order is
+    // reported, and only the URLs before it are added
+    @Test
+    public void addURLsFailure() throws Exception {
+        File before = createJar("a/A.txt=before");
+        File bad = File.createTempFile("URLClassPathTest", ".jar");
+        bad.deleteOnExit();
+        Files.write(bad.toPath(), new byte[1024]);
+        File worse = File.createTempFile("URLClassPathTest", ".jar");
+        worse.deleteOnExit();
+        Files.write(worse.toPath(), new byte[2048]);
+        File after = createJar("a/A.txt=after", "b/B.txt=after");
+
+        URLClassPath ucp = new URLClassPath(new URL[0]);
+        try {
+            ucp.addURLs(new URL[]{ before.toURI().toURL(), bad.toURI().toURL(), after.toURI().toURL(), worse.toURI().toURL() });
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(bad.getName()));
+        }
+        Assert.assertEquals(Arrays.asList("before"), readAll(ucp, "a/A.txt"));
+        Assert.assertNull(ucp.getResource("b/B.txt"));
+        Assert.assertFalse(Arrays.asList(ucp.getURLs()).contains(after.toURI().toURL()));
+        // the archive after the failure was indexed, but not kept
+        Assert.assertEquals(0, Internals.call(archive(after), "getUserCount"));
+        Assert.assertEquals(1, Internals.call(archive(before), "getUserCount"));
+        ucp.closeLoaders();
+        Assert.assertEquals(0, Internals.call(archive(before), "getUserCount"));
+    }
+
+    private static Object archive(File jar) throws IOException {
+        String path = jar.getCanonicalPath();
+        for (Object archive : (List<?>) Internals.callStatic("URLClassPath$ArchiveResourceCache", "archives")) {
+            if (new File((java.net.URI) Internals.get(archive, "source")).getCanonicalPath().equals(path)) return archive;
+        }
+        throw new AssertionError("no archive for " + jar);
+    }
+
+    // classpaths created at the same time over the same archives share their indexes
+    @Test
+    public void concurrentIndexing() throws Exception {
+        final URL[] urls = new URL[8];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = createJar("p" + i + "/R.txt=" + i).toURI().toURL();
+        }
+        final URLClassPath[] ucps = new URLClassPath[4];
+        Thread[] threads = new Thread[ucps.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    ucps[id] = new URLClassPath(urls);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+
+        List<?> first = (List<?>) Internals.get(ucps[0], "providers");
+        Assert.assertEquals(urls.length, first.size());
+        for (URLClassPath ucp : ucps) {
+            List<?> providers = (List<?>) Internals.get(ucp, "providers");
+            for (int i = 0; i < urls.length; i++) {
+                Assert.assertSame(first.get(i), providers.get(i));
+                Assert.assertEquals(String.valueOf(i), read(ucp, "p" + i + "/R.txt"));
+            }
+        }
+        Assert.assertEquals(ucps.length, Internals.call(first.get(0), "getUserCount"));
+        for (URLClassPath ucp : ucps) ucp.closeLoaders();
+    }
+}